@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.collect;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Offering a stream of random scores to a full SortedFixedSizedList, and for comparison to a
+ * BoundedScoreHeap, of capacity k.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SortedFixedSizedListBenchmark {
+  private static final int VALUES = 1 << 16;
+
+  @Param({"3", "100", "1000"})
+  public int k;
+
+  private Double[] values;
+  private double[] scores;
+  private int next;
+  private SortedFixedSizedList<Double> list;
+  private BoundedScoreHeap heap;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    values = new Double[VALUES];
+    scores = new double[VALUES];
+    for (int i = 0; i < VALUES; i++) {
+      scores[i] = random.nextDouble();
+      values[i] = scores[i];
+    }
+    list = new SortedFixedSizedList<Double>(k);
+    heap = new BoundedScoreHeap(k);
+    for (int i = 0; i < k; i++) {
+      list.maybeAdd(values[i]);
+      heap.offer(scores[i], i);
+    }
+  }
+
+  @Benchmark
+  public Double maybeAdd() {
+    next = (next + 1) & (VALUES - 1);
+    return list.maybeAdd(values[next]);
+  }
+
+  @Benchmark
+  public boolean heapOffer() {
+    next = (next + 1) & (VALUES - 1);
+    return heap.offer(scores[next], next);
+  }
+}
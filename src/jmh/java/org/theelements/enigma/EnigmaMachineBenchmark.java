@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
+
+/**
+ * Throughput of single key presses and rotor lookups.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnigmaMachineBenchmark {
+  private EnigmaMachine machine;
+  private int letter;
+
+  @Setup
+  public void setUp() {
+    machine = new EnigmaMachine(new EnigmaMachineConfig('A', 'D', 'U', Rotor.ROTOR_2_1930,
+        Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938, Rotor.REFLECTOR_B));
+  }
+
+  @Benchmark
+  public char step() {
+    letter = letter == 25 ? 0 : letter + 1;
+    return machine.step((char) ('A' + letter));
+  }
+
+  @Benchmark
+  public int stepIndex() {
+    letter = letter == 25 ? 0 : letter + 1;
+    return machine.stepIndex(letter);
+  }
+
+  @Benchmark
+  public char rotorGet() {
+    letter = letter == 25 ? 0 : letter + 1;
+    return Rotor.ROTOR_3_1930.get((char) ('A' + letter), (letter & 1) == 0);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A whole search with EnigmaRunner.run(), each call is one run over every key for reflector B.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnigmaRunnerBenchmark {
+  private static final String PLAIN = "THEWEATHERTODAYISCLEARANDTHETROOPSWILLADVANCEALONGTHERIVER"
+      + "ATDAWNREPORTANYCONTACTWITHTHEENEMYIMMEDIATELYANDHOLDTHEBRIDGEUNTILRELIEVEDBYTHESECOND"
+      + "BATTALIONWHICHISEXPECTEDTOARRIVEBEFORENOON";
+
+  @Param({"30", "80", "200"})
+  public int messageLength;
+
+  @Param({"1,2,3", "1,2,3,4,5"})
+  public String rotors;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  @Param({"STEP", "CYCLE"})
+  public DecodeEngine engine;
+
+  private char[] message;
+  private List<Rotor> rotorList;
+  private List<Rotor> reflectors;
+
+  @Setup
+  public void setUp() {
+    EnigmaMachine machine = new EnigmaMachine(new EnigmaMachineConfig('K', 'D', 'R',
+        Rotor.ROTOR_2_1930, Rotor.ROTOR_1_1930, Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B));
+    message = new char[messageLength];
+    for (int i = 0; i < messageLength; i++) {
+      message[i] = machine.step(PLAIN.charAt(i % PLAIN.length()));
+    }
+
+    rotorList = Lists.newArrayList();
+    for (String name : rotors.split(",")) {
+      rotorList.add(Rotor.getRotorByName(name));
+    }
+    reflectors = Lists.newArrayList(Rotor.REFLECTOR_B);
+  }
+
+  @Benchmark
+  public int run() throws Exception {
+    EnigmaRunner runner = new EnigmaRunner();
+    runner.setEngine(engine);
+    return runner.run(message, rotorList, reflectors, 3, threads).size();
+  }
+}
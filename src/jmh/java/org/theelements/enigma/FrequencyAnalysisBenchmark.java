@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of counting letters and of scoring the counts against English.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrequencyAnalysisBenchmark {
+  private static final String TEXT =
+      "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT";
+
+  private FrequencyAnalysis analysis;
+  private int[] counts;
+
+  @Setup
+  public void setUp() {
+    analysis = new FrequencyAnalysis();
+    counts = new int[26];
+    for (int i = 0; i < TEXT.length(); i++) {
+      analysis.add(TEXT.charAt(i));
+      counts[TEXT.charAt(i) - 'A']++;
+    }
+  }
+
+  /** Counting a whole message with a new FrequencyAnalysis. */
+  @Benchmark
+  public FrequencyAnalysis add() {
+    FrequencyAnalysis fresh = new FrequencyAnalysis();
+    for (int i = 0; i < TEXT.length(); i++) {
+      fresh.add(TEXT.charAt(i));
+    }
+    return fresh;
+  }
+
+  @Benchmark
+  public double calculateDifference() {
+    return analysis.calculateDifference();
+  }
+
+  @Benchmark
+  public double calculateDifferenceFromCounts() {
+    return FrequencyAnalysis.calculateDifference(counts, TEXT.length());
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.collect;
+
+/**
+ * Keeps the entries with the lowest scores out of everything offered to it, up to a fixed
+ * capacity. Entries are a primitive double score and a long key, stored in parallel arrays as a
+ * max-heap so the worst kept entry is always at the root and an offer is O(log capacity).
+ *
+ * <p>Entries are ordered by score and then by key, so the kept set doesn't depend on the order
+ * entries were offered in. Not thread safe, see ConcurrentTopK.
+ */
+public class BoundedScoreHeap {
+  private final double[] scores;
+  private final long[] keys;
+  private int size;
+
+  public BoundedScoreHeap(int capacity) {
+    scores = new double[capacity];
+    keys = new long[capacity];
+  }
+
+  /**
+   * Adds the entry if it is one of the best seen so far, returns whether it was kept.
+   */
+  public boolean offer(double score, long key) {
+    if (size < scores.length) {
+      siftUp(size++, score, key);
+      return true;
+    }
+    if (size == 0 || !isBetter(score, key, scores[0], keys[0])) {
+      return false;
+    }
+    siftDown(0, score, key);
+    return true;
+  }
+
+  /**
+   * Returns the score an entry has to beat to be kept, or Double.POSITIVE_INFINITY if there is
+   * still room. An entry that ties the threshold is kept only if its key is smaller.
+   */
+  public double threshold() {
+    if (size < scores.length) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return size == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+  }
+
+  /** Offers every entry in other to this heap. */
+  public void addAll(BoundedScoreHeap other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.scores[i], other.keys[i]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return scores.length;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Returns the entries sorted from best to worst, this heap is left unchanged.
+   */
+  public ScoredKeys toSorted() {
+    BoundedScoreHeap copy = new BoundedScoreHeap(size);
+    System.arraycopy(scores, 0, copy.scores, 0, size);
+    System.arraycopy(keys, 0, copy.keys, 0, size);
+    copy.size = size;
+
+    // Heap sort, the worst entry is removed first and goes to the end.
+    double[] sortedScores = new double[size];
+    long[] sortedKeys = new long[size];
+    for (int i = size - 1; i >= 0; i--) {
+      sortedScores[i] = copy.scores[0];
+      sortedKeys[i] = copy.keys[0];
+      copy.size--;
+      if (copy.size > 0) {
+        copy.siftDown(0, copy.scores[copy.size], copy.keys[copy.size]);
+      }
+    }
+    return new ScoredKeys(sortedScores, sortedKeys);
+  }
+
+  private static boolean isBetter(double score, long key, double otherScore, long otherKey) {
+    return score < otherScore || (score == otherScore && key < otherKey);
+  }
+
+  private void siftUp(int index, double score, long key) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!isBetter(scores[parent], keys[parent], score, key)) {
+        break;
+      }
+      scores[index] = scores[parent];
+      keys[index] = keys[parent];
+      index = parent;
+    }
+    scores[index] = score;
+    keys[index] = key;
+  }
+
+  private void siftDown(int index, double score, long key) {
+    int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      int right = child + 1;
+      if (right < size && isBetter(scores[child], keys[child], scores[right], keys[right])) {
+        child = right;
+      }
+      if (!isBetter(score, key, scores[child], keys[child])) {
+        break;
+      }
+      scores[index] = scores[child];
+      keys[index] = keys[child];
+      index = child;
+    }
+    scores[index] = score;
+    keys[index] = key;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.collect;
+
+/**
+ * Collects the best scoring entries from many threads. Each thread fills its own
+ * BoundedScoreHeap and merges it in from time to time, so threads only contend when merging.
+ * After every merge the worst score that is still kept is published as the admission threshold,
+ * which threads can read without locking to skip work that can't make the cut.
+ */
+public class ConcurrentTopK {
+  private final BoundedScoreHeap merged;
+  private volatile double threshold = Double.POSITIVE_INFINITY;
+  // Guarded by merged.
+  private double bound = Double.POSITIVE_INFINITY;
+
+  public ConcurrentTopK(int capacity) {
+    merged = new BoundedScoreHeap(capacity);
+  }
+
+  /** Returns a heap with the same capacity, for a single thread to collect entries in. */
+  public BoundedScoreHeap newLocalHeap() {
+    return new BoundedScoreHeap(merged.capacity());
+  }
+
+  /**
+   * Returns the score an entry has to beat to be kept, see BoundedScoreHeap.threshold(). This
+   * only ever goes down.
+   */
+  public double getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Lowers the threshold to bound if it is higher, for example to the worst score another
+   * collector of the same entries already keeps.
+   */
+  public void lowerThreshold(double bound) {
+    synchronized (merged) {
+      this.bound = Math.min(this.bound, bound);
+      threshold = Math.min(threshold, this.bound);
+    }
+  }
+
+  /** Merges the entries from local and then clears it. */
+  public void merge(BoundedScoreHeap local) {
+    synchronized (merged) {
+      merged.addAll(local);
+      threshold = Math.min(merged.threshold(), bound);
+    }
+    local.clear();
+  }
+
+  /** Returns the merged entries sorted from best to worst. */
+  public ScoredKeys getSorted() {
+    synchronized (merged) {
+      return merged.toSorted();
+    }
+  }
+}
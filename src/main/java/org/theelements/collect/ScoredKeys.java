@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.collect;
+
+/**
+ * An immutable list of scores and keys sorted from best (lowest score) to worst.
+ */
+public class ScoredKeys {
+  private final double[] scores;
+  private final long[] keys;
+
+  ScoredKeys(double[] scores, long[] keys) {
+    this.scores = scores;
+    this.keys = keys;
+  }
+
+  public int size() {
+    return scores.length;
+  }
+
+  /** The i-th best score, 0 is the best. */
+  public double getScore(int i) {
+    return scores[i];
+  }
+
+  /** The key for getScore(i). */
+  public long getKey(int i) {
+    return keys[i];
+  }
+}
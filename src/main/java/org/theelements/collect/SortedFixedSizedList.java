@@ -103,8 +103,8 @@ public class SortedFixedSizedList<E extends Comparable<E>> implements Iterable<E
       head = node;
       head.prev = null;
       return;
-    } else if (node.data.compareTo(tail.data) < 0){
-      // Adding after tail
+    } else if (node.data.compareTo(tail.data) <= 0) {
+      // Adding after tail, ties with the tail also go here
       tail.next = node;
       node.prev = tail;
       tail = node;
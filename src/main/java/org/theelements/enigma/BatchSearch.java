@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Searches a KeySpace for many messages at once. The key space is walked once, and for every key
+ * the rotor offsets at each key press are worked out once and then used to decode all of the
+ * messages, so the per-key setup and the stepping are shared by the whole batch. Each message
+ * keeps its own best keys and its own score bound for pruning.
+ */
+class BatchSearch {
+  private final KeySpace keySpace;
+  private final InnerPermutationCache innerPermutations;
+  private final Scorer scorer;
+  private final int[][] messages;
+  private final int[][] cribs;
+  private final double[] cribBonuses;
+  private final double[][] boundIncrements;
+  private final int maxLength;
+
+  private final ConcurrentTopK[] best;
+  private final ThreadLocal<Worker> workers;
+
+  private final AtomicLong candidatesEvaluated = new AtomicLong();
+  private final AtomicLong candidatesPruned = new AtomicLong();
+
+  /**
+   * @param cribs the crib for each message, or null for messages without one
+   */
+  BatchSearch(KeySpace keySpace, InnerPermutationCache innerPermutations, List<char[]> messages,
+      List<String> cribs, Scorer scorer, int numResults) {
+    Preconditions.checkArgument(messages.size() == cribs.size());
+    this.keySpace = keySpace;
+    this.innerPermutations = innerPermutations;
+    this.scorer = scorer;
+
+    int count = messages.size();
+    this.messages = new int[count][];
+    this.cribs = new int[count][];
+    this.cribBonuses = new double[count];
+    this.boundIncrements = new double[count][];
+    this.best = new ConcurrentTopK[count];
+    int longest = 0;
+    for (int m = 0; m < count; m++) {
+      this.messages[m] = CandidateEvaluator.toIndexes(messages.get(m));
+      String crib = cribs.get(m);
+      if (crib != null) {
+        this.cribs[m] = CandidateEvaluator.toIndexes(crib.toCharArray());
+        this.cribBonuses[m] = crib.length() * 100;
+      }
+      this.boundIncrements[m] = scorer.lowerBoundIncrements(this.messages[m].length);
+      this.best[m] = new ConcurrentTopK(numResults);
+      longest = Math.max(longest, this.messages[m].length);
+    }
+    this.maxLength = longest;
+
+    this.workers = new ThreadLocal<Worker>() {
+      @Override
+      protected Worker initialValue() {
+        return new Worker();
+      }
+    };
+  }
+
+  /**
+   * Searches the whole key space and returns the best keys for each message, in the order the
+   * messages were given, each sorted from best to worst.
+   */
+  List<ScoredKeys> run(ForkJoinPool pool) {
+    long size = keySpace.size();
+    KeyRangeTask.search(pool, 0, size, KeyRangeTask.maxRange(pool, size),
+        new KeyRangeTask.Leaf() {
+          @Override
+          public void search(long start, long end) {
+            workers.get().searchRange(start, end);
+          }
+        });
+
+    List<ScoredKeys> results = Lists.newArrayListWithCapacity(best.length);
+    for (ConcurrentTopK top : best) {
+      results.add(top.getSorted());
+    }
+    return results;
+  }
+
+  /** The number of (key, message) pairs tried. */
+  long getCandidatesEvaluated() {
+    return candidatesEvaluated.get();
+  }
+
+  /** The number of (key, message) pairs given up on before the whole message was decoded. */
+  long getCandidatesPruned() {
+    return candidatesPruned.get();
+  }
+
+  /** The per-thread decoding buffers, nothing in here is shared. */
+  private class Worker {
+    private final EnigmaMachine machine = new EnigmaMachine();
+    // The rotor offsets at each key press, shared by all of the messages.
+    private final int[] rightOffsets = new int[maxLength];
+    private final int[] innerBases = new int[maxLength];
+    private final int[] decoded = new int[maxLength];
+    private final int[] counts = new int[26];
+    private final BoundedScoreHeap[] local = new BoundedScoreHeap[messages.length];
+
+    private int[] forward3;
+    private int[] reverse3;
+    private byte[] innerTable;
+
+    Worker() {
+      for (int m = 0; m < messages.length; m++) {
+        local[m] = best[m].newLocalHeap();
+      }
+    }
+
+    void searchRange(long start, long end) {
+      long pruned = 0;
+      long index = start;
+      while (index < end) {
+        int slice = (int) (index / KeySpace.POSITIONS);
+        int rotorOrder = keySpace.getSliceRotorOrder(slice);
+        int reflector = keySpace.getSliceReflector(slice);
+        setRotors(keySpace.getRotorOrder(rotorOrder), keySpace.getReflector(reflector));
+
+        long sliceEnd = Math.min(end, (slice + 1L) * KeySpace.POSITIONS);
+        for (; index < sliceEnd; index++) {
+          int position = (int) (index % KeySpace.POSITIONS);
+          int position1 = position / 676;
+          int position2 = position / 26 % 26;
+          int position3 = position % 26;
+          machine.setPositions(position1, position2, position3);
+          machine.recordOffsets(maxLength, rightOffsets, innerBases);
+
+          long key = EnigmaKey.pack(rotorOrder, reflector, position1, position2, position3);
+          for (int m = 0; m < messages.length; m++) {
+            double threshold = Math.min(local[m].threshold(), best[m].getThreshold());
+            double score = evaluate(m, threshold);
+            if (score == Double.POSITIVE_INFINITY) {
+              pruned++;
+            } else if (score <= threshold) {
+              local[m].offer(score, key);
+            }
+          }
+        }
+      }
+
+      candidatesEvaluated.addAndGet((end - start) * messages.length);
+      candidatesPruned.addAndGet(pruned);
+      for (int m = 0; m < messages.length; m++) {
+        best[m].merge(local[m]);
+      }
+    }
+
+    private void setRotors(Rotor[] rotors, Rotor reflector) {
+      machine.setRotors(rotors[0], rotors[1], rotors[2], reflector, innerPermutations);
+      innerTable = innerPermutations.get(rotors[0], rotors[1], reflector);
+      Preconditions.checkState(innerTable != null, "Missing inner permutation table.");
+      forward3 = rotors[2].getFlatForwardTable();
+      reverse3 = rotors[2].getFlatReverseTable();
+    }
+
+    /**
+     * Decodes message m with the recorded offsets and scores it, or gives up and returns
+     * Double.POSITIVE_INFINITY once the score bound passes threshold.
+     */
+    private double evaluate(int m, double threshold) {
+      int[] message = messages[m];
+      int length = message.length;
+      double[] increments = boundIncrements[m];
+      double pruneAbove = threshold + cribBonuses[m] + CandidateEvaluator.BOUND_TOLERANCE;
+      double bound = 0.0;
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < length; i++) {
+        int base = rightOffsets[i] * 26;
+        int letter = reverse3[base + innerTable[innerBases[i] + forward3[base + message[i]]]];
+        decoded[i] = letter;
+        if (increments != null) {
+          bound += increments[letter * length + counts[letter]];
+          if (bound > pruneAbove) {
+            return Double.POSITIVE_INFINITY;
+          }
+        }
+        counts[letter]++;
+      }
+
+      double score = scorer.score(decoded, counts, length);
+      if (cribs[m] != null && CandidateEvaluator.contains(decoded, length, cribs[m])) {
+        score -= cribBonuses[m];
+      }
+      return score;
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Finds keys with a plugboard the way the Turing-Welchman bombe did, from a crib. For every
+ * rotor order, reflector and starting position, and each of the 26 guesses of what the menu's
+ * test letter is plugged to, the consequences are followed around the menu. The scrambler
+ * depends only on the rotor positions, so its output for every position is worked out once per
+ * slice, and each key reads its key presses' positions from the StateSequence of the middle and
+ * right rotors. A key then costs nothing to set up, only the lookups along the menu edges it
+ * visits. A guess that leads to a letter being plugged to two different letters is impossible;
+ * only the guesses that survive (stops) are decoded, using the plugboard pairs the menu implied,
+ * and scored.
+ *
+ * <p>Rings are assumed to be at A, like the bombe the middle rotor's turnover is found by
+ * trying every starting position instead.
+ */
+class BombeSearch {
+  private final KeySpace keySpace;
+  private final InnerPermutationCache innerPermutations;
+  private final Menu[] menus;
+  private final int skippedMenus;
+  private final int lastStep;
+  private final int numResults;
+  private final ThreadLocal<Worker> workers;
+
+  private final List<KeyResult> best = Lists.newArrayList();
+
+  private final AtomicLong keysTested = new AtomicLong();
+  private final AtomicLong keysRejected = new AtomicLong();
+  private final AtomicLong menusTested = new AtomicLong();
+  private final AtomicLong stops = new AtomicLong();
+
+  /**
+   * @param cribOffset where the crib starts in the message, or -1 to try every offset where it
+   *     could be
+   * @param minLoops when trying every offset, the offsets whose menu has fewer loops than this
+   *     are skipped. A menu without loops barely constrains the plugboard, so it stops at almost
+   *     every key and costs far more than it finds.
+   */
+  BombeSearch(KeySpace keySpace, InnerPermutationCache innerPermutations, final char[] message,
+      final String crib, final Scorer scorer, int cribOffset, int minLoops, int numResults) {
+    Preconditions.checkArgument(crib != null && !crib.isEmpty(), "The bombe needs a crib.");
+    Preconditions.checkNotNull(innerPermutations, "The bombe needs an InnerPermutationCache.");
+    this.keySpace = keySpace;
+    this.innerPermutations = innerPermutations;
+    this.numResults = numResults;
+
+    int[] messageIndexes = CandidateEvaluator.toIndexes(message);
+    int[] cribIndexes = CandidateEvaluator.toIndexes(crib.toCharArray());
+    int[] offsets = Menu.validOffsets(messageIndexes, cribIndexes);
+    if (cribOffset >= 0) {
+      Preconditions.checkArgument(Arrays.binarySearch(offsets, cribOffset) >= 0,
+          "The crib can't be at offset %s.", cribOffset);
+      offsets = new int[] {cribOffset};
+    }
+    List<Menu> kept = Lists.newArrayList();
+    for (int offset : offsets) {
+      Menu menu = Menu.build(messageIndexes, cribIndexes, offset);
+      if (cribOffset >= 0 || menu.getLoops() >= minLoops) {
+        kept.add(menu);
+      }
+    }
+    menus = kept.toArray(new Menu[kept.size()]);
+    skippedMenus = offsets.length - menus.length;
+    lastStep = menus.length == 0 ? 0 : menus[menus.length - 1].getOffset() + cribIndexes.length;
+
+    this.workers = new ThreadLocal<Worker>() {
+      @Override
+      protected Worker initialValue() {
+        return new Worker(message, crib, scorer);
+      }
+    };
+  }
+
+  /** The number of places the crib is tried at. */
+  int getMenuCount() {
+    return menus.length;
+  }
+
+  /** The number of places the crib could be that were skipped for having too few loops. */
+  int getSkippedMenuCount() {
+    return skippedMenus;
+  }
+
+  /**
+   * Runs the bombe over the whole key space and returns the best numResults stops, best first.
+   */
+  List<KeyResult> run(ForkJoinPool pool) {
+    if (menus.length > 0) {
+      long size = keySpace.size();
+      KeyRangeTask.search(pool, 0, size, KeyRangeTask.maxRange(pool, size),
+          new KeyRangeTask.Leaf() {
+            @Override
+            public void search(long start, long end) {
+              workers.get().searchRange(start, end);
+            }
+          });
+    }
+    synchronized (best) {
+      return Lists.newArrayList(best);
+    }
+  }
+
+  long getKeysTested() {
+    return keysTested.get();
+  }
+
+  /** The number of keys where every guess at every crib offset was impossible. */
+  long getKeysRejected() {
+    return keysRejected.get();
+  }
+
+  /** The number of (key, crib offset) pairs tested. */
+  long getMenusTested() {
+    return menusTested.get();
+  }
+
+  /** The number of plugboard guesses that survived the menu and were decoded. */
+  long getStops() {
+    return stops.get();
+  }
+
+  private void merge(List<KeyResult> results) {
+    synchronized (best) {
+      best.addAll(results);
+      Collections.sort(best);
+      if (best.size() > numResults) {
+        best.subList(numResults, best.size()).clear();
+      }
+    }
+    results.clear();
+  }
+
+  /** The per-thread state, nothing in here is shared. */
+  private class Worker {
+    private final CandidateEvaluator evaluator;
+    // The scrambler's output for every rotor position in the slice, [state * 26 + letter] with
+    // states packed like StateSequence's, and the slice it was worked out for.
+    private final byte[] scrambler = new byte[KeySpace.POSITIONS * 26];
+    private int scramblerSlice = -1;
+    private int[] states;
+    // Where the current key's window starts in states.
+    private int window;
+    // What each letter is plugged to as a bit mask, 0 while unknown.
+    private final int[] plugged = new int[26];
+    private final int[] queue = new int[2 * 26];
+    private final List<KeyResult> results = Lists.newArrayList();
+
+    Worker(char[] message, String crib, Scorer scorer) {
+      evaluator = new CandidateEvaluator(message, crib, scorer);
+    }
+
+    void searchRange(long start, long end) {
+      long tested = 0;
+      long rejected = 0;
+      long stopCount = 0;
+      long index = start;
+      while (index < end) {
+        int slice = (int) (index / KeySpace.POSITIONS);
+        int rotorOrder = keySpace.getSliceRotorOrder(slice);
+        int reflector = keySpace.getSliceReflector(slice);
+        Rotor[] rotors = keySpace.getRotorOrder(rotorOrder);
+        StateSequence sequence = StateSequence.get(rotors[1], rotors[2], lastStep);
+        states = sequence.getStates();
+        if (slice != scramblerSlice) {
+          loadScrambler(rotors[2],
+              innerPermutations.get(rotors[0], rotors[1], keySpace.getReflector(reflector)));
+          scramblerSlice = slice;
+        }
+        evaluator.setRotors(rotors[0], rotors[1], rotors[2], keySpace.getReflector(reflector),
+            innerPermutations);
+
+        long sliceEnd = Math.min(end, (slice + 1L) * KeySpace.POSITIONS);
+        for (; index < sliceEnd; index++) {
+          int position = (int) (index % KeySpace.POSITIONS);
+          int position1 = position / 676;
+          int position2 = position / 26 % 26;
+          int position3 = position % 26;
+          window = sequence.getStart(position);
+          long stopsBefore = stopCount;
+
+          for (Menu menu : menus) {
+            tested++;
+            int testLetter = menu.getTestLetter();
+            for (int guess = 0; guess < 26; guess++) {
+              if (propagate(menu, testLetter, guess)) {
+                stopCount++;
+                decode(EnigmaKey.pack(rotorOrder, reflector, position1, position2, position3),
+                    position1, position2, position3);
+              }
+            }
+          }
+          if (stopCount == stopsBefore) {
+            rejected++;
+          }
+        }
+      }
+
+      keysTested.addAndGet(end - start);
+      keysRejected.addAndGet(rejected);
+      menusTested.addAndGet(tested);
+      stops.addAndGet(stopCount);
+      merge(results);
+    }
+
+    private void loadScrambler(Rotor rotor3, byte[] innerTable) {
+      int[] forward3 = rotor3.getFlatForwardTable();
+      int[] reverse3 = rotor3.getFlatReverseTable();
+      for (int state = 0; state < KeySpace.POSITIONS; state++) {
+        int right = state % 26 * 26;
+        int inner = state / 26 * 26;
+        for (int letter = 0; letter < 26; letter++) {
+          scrambler[state * 26 + letter] =
+              (byte) reverse3[right + innerTable[inner + forward3[right + letter]]];
+        }
+      }
+    }
+
+    // The scrambler's output for letter at key press step + 1 of the current key.
+    private int scramble(int step, int letter) {
+      return scrambler[states[window + step] * 26 + letter];
+    }
+
+    /**
+     * Assumes testLetter is plugged to guess and follows that around the menu. Returns false as
+     * soon as some letter would need to be plugged to two different letters.
+     */
+    private boolean propagate(Menu menu, int testLetter, int guess) {
+      Arrays.fill(plugged, 0);
+      int head = 0;
+      int size = plug(testLetter, guess, 0);
+      if (size < 0) {
+        return false;
+      }
+      int offset = menu.getOffset();
+      while (head < size) {
+        int letter = queue[head++];
+        int partner = Integer.numberOfTrailingZeros(plugged[letter]);
+        int[] neighbours = menu.getNeighbours(letter);
+        int[] positions = menu.getPositions(letter);
+        for (int i = 0; i < neighbours.length; i++) {
+          size = plug(neighbours[i], scramble(offset + positions[i], partner), size);
+          if (size < 0) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Records that a and b are plugged together, both ways like the bombe's diagonal board, and
+     * queues any letter that just learnt its partner. Returns the new queue size, or -1 if a or
+     * b is already plugged to something else.
+     */
+    private int plug(int a, int b, int size) {
+      int known = plugged[a];
+      if (known != 0) {
+        return known == 1 << b ? size : -1;
+      }
+      if (plugged[b] != 0) {
+        return -1;
+      }
+      plugged[a] = 1 << b;
+      queue[size++] = a;
+      if (a != b) {
+        plugged[b] = 1 << a;
+        queue[size++] = b;
+      }
+      return size;
+    }
+
+    private void decode(long key, int position1, int position2, int position3) {
+      int[] wiring = Plugboard.identity();
+      for (int letter = 0; letter < 26; letter++) {
+        if (plugged[letter] != 0) {
+          wiring[letter] = Integer.numberOfTrailingZeros(plugged[letter]);
+        }
+      }
+      evaluator.setPlugboard(wiring);
+      double score = evaluator.evaluate(position1, position2, position3);
+      results.add(new KeyResult(key, Plugboard.fromWiring(wiring), score));
+      if (results.size() >= 4 * numResults) {
+        merge(results);
+      }
+    }
+  }
+}
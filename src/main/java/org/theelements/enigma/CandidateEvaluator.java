@@ -0,0 +1,312 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decodes and scores a message for one key at a time. An evaluator owns its machine and buffers
+ * and reuses them for every key, so it must only be used by a single thread.
+ */
+class CandidateEvaluator {
+  // Allows for rounding differences between the bound and the final score.
+  static final double BOUND_TOLERANCE = 1e-9;
+
+  private final EnigmaMachine machine = new EnigmaMachine();
+  private final int[] message;
+  private final int[] crib;
+  private final int[] decoded;
+  private final int[] counts = new int[26];
+  private final Scorer scorer;
+  private final double[] boundIncrements;
+  private final double cribBonus;
+
+  private int[] plugboard;
+  private boolean ringsAtA = true;
+  private int[] cribOffsets;
+  private SteppingCycle cycle;
+  private int[] jumps;
+  private int jumpStride;
+
+  // Used by the CYCLE and VECTOR engines, sequence is null for the STEP engine.
+  private DecodeEngine engine = DecodeEngine.STEP;
+  private StateSequence sequence;
+  private int[] rightBases;
+  private int[] innerBases;
+  private int[] forward3;
+  private int[] reverse3;
+  private byte[] innerTable;
+  private PermutationAtlas atlas;
+  private int atlasBase = -1;
+
+  private long evaluated;
+  private long pruned;
+  private long cribRejected;
+  private long lettersDecoded;
+  private boolean foundCrib;
+
+  CandidateEvaluator(char[] message, String crib) {
+    this(message, crib, new FrequencyScorer());
+  }
+
+  CandidateEvaluator(char[] message, String crib, Scorer scorer) {
+    this.message = toIndexes(message);
+    this.crib = crib == null ? null : toIndexes(crib.toCharArray());
+    this.decoded = new int[message.length];
+    this.scorer = scorer;
+    this.boundIncrements = scorer.lowerBoundIncrements(message.length);
+    this.cribBonus = crib == null ? 0.0 : crib.length() * 100;
+  }
+
+  void setRotors(Rotor rotor1, Rotor rotor2, Rotor rotor3, Rotor reflector,
+      InnerPermutationCache innerPermutations) {
+    machine.setRotors(rotor1, rotor2, rotor3, reflector, innerPermutations);
+    if (engine != DecodeEngine.STEP) {
+      sequence = StateSequence.get(rotor2, rotor3, message.length);
+      rightBases = sequence.getRightBases();
+      innerBases = sequence.getInnerBases();
+      forward3 = rotor3.getFlatForwardTable();
+      reverse3 = rotor3.getFlatReverseTable();
+      innerTable = innerPermutations == null
+          ? null : innerPermutations.get(rotor1, rotor2, reflector);
+      atlasBase = atlas == null ? -1 : atlas.getBase(rotor1, rotor2, rotor3, reflector);
+      if (innerTable == null && atlasBase < 0) {
+        sequence = null;
+      }
+    }
+    if (cribOffsets != null) {
+      SteppingCycle newCycle = SteppingCycle.get(rotor2, rotor3);
+      if (newCycle != cycle) {
+        cycle = newCycle;
+        jumps = cycle.jumpTable(jumpStride - 1);
+      }
+    }
+  }
+
+  /** Decodes with the permutations in atlas, see EnigmaMachine.setAtlas(). */
+  void setAtlas(PermutationAtlas atlas) {
+    this.atlas = atlas;
+    machine.setAtlas(atlas);
+  }
+
+  /**
+   * Chooses how messages are decoded, takes effect at the next call to setRotors(). The CYCLE
+   * engine needs an InnerPermutationCache or an atlas with the rotors, and the rings at A.
+   */
+  void setEngine(DecodeEngine engine) {
+    this.engine = engine;
+    this.sequence = null;
+  }
+
+  /**
+   * Turns on crib first decoding. Each key is first checked by decoding only the letters under
+   * the crib at each of offsets, jumping the rotors straight to them, and keys where the crib
+   * isn't at any of the offsets are rejected without decoding the rest of the message. Must be
+   * called before setRotors().
+   */
+  void setCribOffsets(int[] offsets) {
+    Preconditions.checkState(crib != null, "Crib first decoding needs a crib.");
+    this.cribOffsets = offsets;
+    this.jumpStride = offsets.length == 0 ? 1 : offsets[offsets.length - 1] + crib.length + 1;
+  }
+
+  /**
+   * Sets the ring settings used for the following keys, see EnigmaMachine.setRings().
+   */
+  void setRings(int ring1, int ring2, int ring3) {
+    ringsAtA = ring1 == 0 && ring2 == 0 && ring3 == 0;
+    machine.setRings(ring1, ring2, ring3);
+  }
+
+  /**
+   * Sets the plugboard wiring used for the following keys, null for none. The array is not
+   * copied.
+   */
+  void setPlugboard(int[] plugboard) {
+    this.plugboard = plugboard;
+    machine.setPlugboard(plugboard);
+  }
+
+  /**
+   * Returns the score of the message decoded with the rotors at the given starting positions,
+   * smaller is better. This is the scorer's score minus 100 for each letter of the crib if the
+   * crib appears in the decoded message.
+   */
+  double evaluate(int position1, int position2, int position3) {
+    return evaluate(position1, position2, position3, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Like evaluate(), but gives up as soon as the partly decoded message proves the score can't
+   * be smaller than threshold. Returns Double.POSITIVE_INFINITY for keys that were given up on.
+   * Scorers without a lower bound always decode the whole message.
+   */
+  double evaluate(int position1, int position2, int position3, double threshold) {
+    evaluated++;
+    foundCrib = false;
+    if (cribOffsets != null && !cribFits(position1, position2, position3)) {
+      cribRejected++;
+      return Double.POSITIVE_INFINITY;
+    }
+    // With the CYCLE engine the positions at each key press come from the sequence, start is
+    // -1 when the machine is stepped instead.
+    int start = -1;
+    if (sequence != null && ringsAtA) {
+      start = sequence.getStart((position1 * 26 + position2) * 26 + position3);
+    } else {
+      machine.setPositions(position1, position2, position3);
+    }
+    Arrays.fill(counts, 0);
+
+    // The crib could still show up in the part that hasn't been decoded yet.
+    double pruneAbove = threshold + cribBonus + BOUND_TOLERANCE;
+    int length = message.length;
+    if (boundIncrements == null) {
+      for (int i = 0; i < length; i++) {
+        int letter = start < 0 ? machine.stepIndex(message[i]) : decodeAt(start + i, message[i]);
+        decoded[i] = letter;
+        counts[letter]++;
+      }
+      lettersDecoded += length;
+    } else {
+      double bound = 0.0;
+      for (int i = 0; i < length; i++) {
+        int letter = start < 0 ? machine.stepIndex(message[i]) : decodeAt(start + i, message[i]);
+        decoded[i] = letter;
+        bound += boundIncrements[letter * length + counts[letter]];
+        counts[letter]++;
+        if (bound > pruneAbove) {
+          pruned++;
+          lettersDecoded += i + 1;
+          return Double.POSITIVE_INFINITY;
+        }
+      }
+      lettersDecoded += length;
+    }
+
+    double score = scorer.score(decoded, counts, length);
+    if (crib != null && contains(decoded, length, crib)) {
+      foundCrib = true;
+      score -= cribBonus;
+    }
+    return score;
+  }
+
+  /** Whether the message decoded by the last call to evaluate() contains the crib. */
+  boolean foundCrib() {
+    return foundCrib;
+  }
+
+  /** The number of keys passed to evaluate() since the last call to resetCounts(). */
+  long getEvaluated() {
+    return evaluated;
+  }
+
+  /**
+   * The number of keys given up on early by the score bound since the last call to
+   * resetCounts(), not counting the keys rejected by the crib.
+   */
+  long getPruned() {
+    return pruned;
+  }
+
+  /** The number of keys rejected by crib first decoding since the last call to resetCounts(). */
+  long getCribRejected() {
+    return cribRejected;
+  }
+
+  /**
+   * The number of letters decoded since the last call to resetCounts(), including the letters
+   * under the crib decoded by crib first decoding.
+   */
+  long getLettersDecoded() {
+    return lettersDecoded;
+  }
+
+  void resetCounts() {
+    evaluated = 0;
+    pruned = 0;
+    cribRejected = 0;
+    lettersDecoded = 0;
+  }
+
+  // Decodes input with the rotors at the positions in the sequence at index.
+  private int decodeAt(int index, int input) {
+    if (plugboard != null) {
+      input = plugboard[input];
+    }
+    int right = rightBases[index];
+    int output;
+    if (atlasBase >= 0) {
+      output = atlas.get(atlasBase, innerBases[index] + right / 26, input);
+    } else {
+      output = reverse3[right + innerTable[innerBases[index] + forward3[right + input]]];
+    }
+    return plugboard == null ? output : plugboard[output];
+  }
+
+  // Decodes just the letters under the crib at each offset, usually the first one is wrong.
+  private boolean cribFits(int position1, int position2, int position3) {
+    int base = (position2 * 26 + position3) * jumpStride + 1;
+    for (int offset : cribOffsets) {
+      int i = 0;
+      for (; i < crib.length; i++) {
+        int jump = jumps[base + offset + i];
+        int next = jump % SteppingCycle.STATES;
+        machine.setPositions((position1 + jump / SteppingCycle.STATES) % 26, next / 26,
+            next % 26);
+        int letter = message[offset + i];
+        letter = plugboard == null
+            ? machine.scramble(letter) : plugboard[machine.scramble(plugboard[letter])];
+        if (letter != crib[i]) {
+          break;
+        }
+      }
+      lettersDecoded += Math.min(i + 1, crib.length);
+      if (i == crib.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns true if pattern appears in the first length letters of text. */
+  static boolean contains(int[] text, int length, int[] pattern) {
+    outer:
+    for (int start = 0; start + pattern.length <= length; start++) {
+      for (int i = 0; i < pattern.length; i++) {
+        if (text[start + i] != pattern[i]) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  static int[] toIndexes(char[] letters) {
+    int[] indexes = new int[letters.length];
+    for (int i = 0; i < letters.length; i++) {
+      Preconditions.checkArgument(letters[i] >= 'A' && letters[i] <= 'Z',
+          "Only the letters A-Z are supported, found '%s'.", letters[i]);
+      indexes[i] = letters[i] - 'A';
+    }
+    return indexes;
+  }
+}
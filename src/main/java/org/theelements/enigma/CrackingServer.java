@@ -0,0 +1,567 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.theelements.collect.ScoredKeys;
+import org.theelements.enigma.EnigmaRunner.EnigmaResult;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long running process that cracks messages sent to it over HTTP, so the JIT, the rotor tables
+ * and the n-gram tables stay warm between messages. All jobs share one worker pool: each job's
+ * key space is searched a chunk at a time, taking turns with the other queued jobs, so a short
+ * job isn't stuck behind a long one.
+ *
+ * <pre>
+ * POST   /jobs          queues a job and returns its id, the form parameters are message,
+ *                       crib, rotors (1,2,3,4,5), reflectors (A,B,C), results (3) and
+ *                       scorer (FREQUENCY)
+ * GET    /jobs/ID       the job's status and progress, and its results once it is DONE, add
+ *                       ?wait=SECONDS to wait for it to finish
+ * DELETE /jobs/ID       cancels the job
+ * </pre>
+ *
+ * Only the loopback address is listened on unless -bind says otherwise. A job is refused with 503
+ * while -max_queued_jobs haven't finished. Finished jobs are dropped after -retain_seconds, or
+ * sooner once there are more than -max_finished_jobs of them.
+ */
+public class CrackingServer {
+
+  /** The most results a job may ask for. */
+  static final int MAX_RESULTS = 100;
+
+  /** The states of a job. */
+  enum Status {
+    QUEUED, RUNNING, DONE, CANCELLED, FAILED
+  }
+
+  @Option(name="-port", usage="The port to listen on.")
+  private int port = 8080;
+
+  @Option(name="-bind", usage="The address to listen on, the loopback address by default. Use "
+      + "0.0.0.0 to listen on every interface.")
+  private String bind;
+
+  @Option(name="-num_threads", usage="The number of threads shared by all jobs.")
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+
+  @Option(name="-chunk_size", usage="The number of keys a job searches before the next job gets "
+      + "a turn. By default it grows with -num_threads so every thread gets several ranges.")
+  private long chunkSize;
+
+  @Option(name="-max_queued_jobs", usage="The most jobs that may be queued or running, more are "
+      + "refused.")
+  private int maxQueuedJobs = 100;
+
+  @Option(name="-retain_seconds", usage="How long a finished job's results are kept.")
+  private long retainSeconds = TimeUnit.HOURS.toSeconds(1);
+
+  @Option(name="-max_finished_jobs", usage="The most finished jobs kept, the oldest are dropped "
+      + "first.")
+  private int maxFinishedJobs = 1000;
+
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final ConcurrentMap<Long, Job> jobs = Maps.newConcurrentMap();
+  // Built once for each set of rotors and reflectors, guarded by itself.
+  private final Map<String, Tables> tables = Maps.newHashMap();
+  // Jobs waiting for their next turn, guarded by itself.
+  private final Deque<Job> queue = new ArrayDeque<Job>();
+
+  private HttpServer server;
+  private ForkJoinPool pool;
+  private Thread scheduler;
+  private ExecutorService requests;
+
+  public CrackingServer() {
+  }
+
+  CrackingServer(int numThreads, long chunkSize) {
+    this.numThreads = numThreads;
+    this.chunkSize = chunkSize;
+  }
+
+  CrackingServer(int numThreads, long chunkSize, long retainSeconds, int maxFinishedJobs) {
+    this(numThreads, chunkSize);
+    this.retainSeconds = retainSeconds;
+    this.maxFinishedJobs = maxFinishedJobs;
+  }
+
+  CrackingServer(int numThreads, long chunkSize, int maxQueuedJobs) {
+    this(numThreads, chunkSize);
+    this.maxQueuedJobs = maxQueuedJobs;
+  }
+
+  /**
+   * The default -chunk_size, enough keys for KeySearch to split a chunk into 8 ranges per thread
+   * that are no smaller than KeyRangeTask.MIN_RANGE, and at least one slice.
+   */
+  static long defaultChunkSize(int numThreads) {
+    return Math.max(KeySpace.POSITIONS, numThreads * 8L * KeyRangeTask.MIN_RANGE);
+  }
+
+  public void doMain(String[] args) throws Exception {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+    int boundPort = start(port);
+    System.out.println("Listening on " + server.getAddress().getAddress().getHostAddress()
+        + " port " + boundPort);
+    scheduler.join();
+  }
+
+  /** Starts serving on port, 0 for any free port, and returns the port. */
+  public int start(int port) throws IOException {
+    if (chunkSize < 0 || maxQueuedJobs < 1) {
+      throw new IllegalArgumentException(
+          "-chunk_size can't be negative and -max_queued_jobs must be at least 1.");
+    }
+    if (chunkSize == 0) {
+      chunkSize = defaultChunkSize(numThreads);
+    }
+    pool = new ForkJoinPool(numThreads);
+    requests = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("http-%d").build());
+    InetAddress address =
+        bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+    server = HttpServer.create(new InetSocketAddress(address, port), 0);
+    server.createContext("/jobs", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleJobs(exchange);
+        } catch (IllegalArgumentException e) {
+          respond(exchange, 400, e.getMessage() + "\n");
+        } catch (RejectedExecutionException e) {
+          respond(exchange, 503, e.getMessage() + "\n");
+        } catch (InterruptedException e) {
+          respond(exchange, 503, "Interrupted\n");
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(requests);
+    server.start();
+
+    scheduler = new Thread("scheduler") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            runChunk(nextTurn());
+          }
+        } catch (InterruptedException e) {
+          // Stopped.
+        }
+      }
+    };
+    scheduler.setDaemon(true);
+    scheduler.start();
+    return server.getAddress().getPort();
+  }
+
+  /** Stops serving, the jobs that haven't finished are cancelled. */
+  public void stop() {
+    server.stop(0);
+    scheduler.interrupt();
+    for (Job job : jobs.values()) {
+      job.cancel();
+    }
+    pool.shutdownNow();
+    requests.shutdownNow();
+  }
+
+  /**
+   * Queues a job and returns it. Throws a RejectedExecutionException if -max_queued_jobs haven't
+   * finished yet.
+   */
+  Job submit(char[] message, String crib, List<Rotor> rotors, List<Rotor> reflectors,
+      ScoringMethod scoringMethod, int numResults) {
+    if (rotors.size() < 3 || reflectors.isEmpty()) {
+      throw new IllegalArgumentException("You must specify at least 3 rotors and 1 reflector.");
+    }
+    if (numResults < 1 || numResults > MAX_RESULTS) {
+      throw new IllegalArgumentException(
+          String.format("You must ask for between 1 and %d results.", MAX_RESULTS));
+    }
+    CandidateEvaluator.toIndexes(message);
+    if (crib != null) {
+      CandidateEvaluator.toIndexes(crib.toCharArray());
+    }
+    evictFinishedJobs();
+    Tables jobTables = getTables(rotors, reflectors);
+    synchronized (queue) {
+      int unfinished = 0;
+      for (Job queued : jobs.values()) {
+        if (queued.getFinishedAt() == 0) {
+          unfinished++;
+        }
+      }
+      if (unfinished >= maxQueuedJobs) {
+        throw new RejectedExecutionException(String.format(
+            "There are already %d jobs queued, try again later.", unfinished));
+      }
+      Job job = new Job(nextId.getAndIncrement(), jobTables, message, crib,
+          scoringMethod.getScorer(), numResults);
+      jobs.put(job.id, job);
+      queue.addLast(job);
+      queue.notifyAll();
+      return job;
+    }
+  }
+
+  Job getJob(long id) {
+    return jobs.get(id);
+  }
+
+  /**
+   * Drops the finished jobs that are older than the retention period, then the oldest finished
+   * jobs over the cap.
+   */
+  void evictFinishedJobs() {
+    long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(retainSeconds);
+    List<Job> finished = Lists.newArrayList();
+    for (Job job : jobs.values()) {
+      long finishedAt = job.getFinishedAt();
+      if (finishedAt == 0) {
+        continue;
+      } else if (finishedAt <= cutoff) {
+        jobs.remove(job.id);
+      } else {
+        finished.add(job);
+      }
+    }
+    if (finished.size() > maxFinishedJobs) {
+      Collections.sort(finished, new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+          int byTime = Long.compare(a.getFinishedAt(), b.getFinishedAt());
+          return byTime != 0 ? byTime : Long.compare(a.id, b.id);
+        }
+      });
+      for (Job job : finished.subList(0, finished.size() - maxFinishedJobs)) {
+        jobs.remove(job.id);
+      }
+    }
+  }
+
+  private Tables getTables(List<Rotor> rotors, List<Rotor> reflectors) {
+    String name = rotors + "|" + reflectors;
+    synchronized (tables) {
+      Tables cached = tables.get(name);
+      if (cached == null) {
+        cached = new Tables(new KeySpace(rotors, reflectors),
+            InnerPermutationCache.build(rotors, reflectors));
+        tables.put(name, cached);
+      }
+      return cached;
+    }
+  }
+
+  // Takes the job at the front of the queue, cancelled jobs are dropped.
+  private Job nextTurn() throws InterruptedException {
+    synchronized (queue) {
+      while (true) {
+        Job job = queue.pollFirst();
+        if (job == null) {
+          queue.wait();
+        } else if (job.getStatus() != Status.CANCELLED) {
+          return job;
+        }
+      }
+    }
+  }
+
+  // Searches the job's next chunk, then sends it to the back of the queue if it isn't done.
+  // Anything the search throws fails just the job, so the scheduler keeps running the others.
+  private void runChunk(Job job) {
+    try {
+      long start = job.startChunk();
+      long end = Math.min(job.size(), start + chunkSize);
+      job.search.run(pool, start, end);
+      if (job.finishChunk(end)) {
+        job.finish(decode(job));
+      } else {
+        synchronized (queue) {
+          queue.addLast(job);
+        }
+      }
+    } catch (Throwable e) {
+      job.fail(e.toString());
+    }
+  }
+
+  private static String decode(Job job) {
+    ScoredKeys best = job.getBest();
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < best.size(); i++) {
+      EnigmaMachine machine = new EnigmaMachine(
+          job.tables.keySpace.getConfig(best.getKey(i), job.tables.innerPermutations));
+      StringBuilder decoded = new StringBuilder(job.message.length);
+      for (char c : job.message) {
+        decoded.append(machine.step(c));
+      }
+      buf.append(new EnigmaResult(decoded.toString(), best.getScore(i), machine.toString()));
+      buf.append("==============================\n");
+    }
+    return buf.toString();
+  }
+
+  private void handleJobs(HttpExchange exchange) throws IOException, InterruptedException {
+    evictFinishedJobs();
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    if (path.equals("/jobs") || path.equals("/jobs/")) {
+      if (!method.equals("POST")) {
+        respond(exchange, 405, "Use POST to submit a job.\n");
+        return;
+      }
+      Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+      String message = params.get("message");
+      if (message == null) {
+        throw new IllegalArgumentException("You must provide a message to be cracked.");
+      }
+      String results = params.get("results");
+      String scorer = params.get("scorer");
+      Job job = submit(message.trim().toUpperCase().toCharArray(), params.get("crib"),
+          parseRotors(params.get("rotors"), "1,2,3,4,5"),
+          parseRotors(params.get("reflectors"), "A,B,C"),
+          scorer == null ? ScoringMethod.FREQUENCY : ScoringMethod.valueOf(scorer.toUpperCase()),
+          results == null ? 3 : Integer.parseInt(results));
+      exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+      respond(exchange, 202, job.id + "\n");
+      return;
+    }
+
+    Job job = null;
+    try {
+      job = jobs.get(Long.parseLong(path.substring("/jobs/".length())));
+    } catch (NumberFormatException e) {
+      // Not found.
+    }
+    if (job == null) {
+      respond(exchange, 404, "No such job.\n");
+    } else if (method.equals("GET")) {
+      String wait = parseForm(exchange.getRequestURI().getRawQuery()).get("wait");
+      if (wait != null) {
+        job.await(TimeUnit.SECONDS.toMillis(Long.parseLong(wait)));
+      }
+      respond(exchange, 200, job.describe());
+    } else if (method.equals("DELETE")) {
+      job.cancel();
+      respond(exchange, 200, job.describe());
+    } else {
+      respond(exchange, 405, "Use GET or DELETE on a job.\n");
+    }
+  }
+
+  private static List<Rotor> parseRotors(String names, String defaultNames) {
+    ImmutableList.Builder<Rotor> rotors = ImmutableList.builder();
+    for (String name : Splitter.on(',').trimResults().omitEmptyStrings()
+        .split(names == null ? defaultNames : names)) {
+      Rotor rotor = Rotor.getRotorByName(name);
+      if (rotor == null) {
+        throw new IllegalArgumentException(String.format("Rotor %s does not exist.", name));
+      }
+      rotors.add(rotor);
+    }
+    return rotors.build();
+  }
+
+  private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+    Map<String, String> params = Maps.newHashMap();
+    if (form != null) {
+      for (String param : Splitter.on('&').omitEmptyStrings().split(form)) {
+        int equals = param.indexOf('=');
+        String name = equals < 0 ? param : param.substring(0, equals);
+        String value = equals < 0 ? "" : param.substring(equals + 1);
+        params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static String readBody(InputStream in) throws IOException {
+    return new String(ByteStreams.toByteArray(ByteStreams.limit(in, 1 << 20)), Charsets.UTF_8);
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(code, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  /** The key space and tables for one set of rotors and reflectors, shared by their jobs. */
+  private static final class Tables {
+    final KeySpace keySpace;
+    final InnerPermutationCache innerPermutations;
+
+    Tables(KeySpace keySpace, InnerPermutationCache innerPermutations) {
+      this.keySpace = keySpace;
+      this.innerPermutations = innerPermutations;
+    }
+  }
+
+  /** A queued message and how far its search has got. */
+  static final class Job {
+    final long id;
+    final Tables tables;
+    final char[] message;
+    // Searches every chunk, so the best keys and the score needed to beat them carry over.
+    final KeySearch search;
+
+    // Guarded by this.
+    private long searched;
+    private Status status = Status.QUEUED;
+    private String results = "";
+    private long finishedAt;
+
+    Job(long id, Tables tables, char[] message, String crib, Scorer scorer, int numResults) {
+      this.id = id;
+      this.tables = tables;
+      this.message = message;
+      this.search = new KeySearch(tables.keySpace, tables.innerPermutations, message, crib, scorer,
+          numResults);
+    }
+
+    long size() {
+      return tables.keySpace.size();
+    }
+
+    synchronized Status getStatus() {
+      return status;
+    }
+
+    /** When the job stopped running in milliseconds since the epoch, 0 while it is running. */
+    synchronized long getFinishedAt() {
+      return finishedAt;
+    }
+
+    synchronized long getSearched() {
+      return searched;
+    }
+
+    ScoredKeys getBest() {
+      return search.getBestSoFar();
+    }
+
+    /** The results once the job is DONE, an empty string until then. */
+    synchronized String getResults() {
+      return results;
+    }
+
+    synchronized long startChunk() {
+      if (status == Status.QUEUED) {
+        status = Status.RUNNING;
+      }
+      return searched;
+    }
+
+    // Records that the keys up to end were searched and returns true if that was the last chunk.
+    synchronized boolean finishChunk(long end) {
+      if (search.isStopped()) {
+        return false;
+      }
+      searched = end;
+      return end == size() && status == Status.RUNNING;
+    }
+
+    synchronized void finish(String results) {
+      if (status == Status.RUNNING) {
+        this.results = results;
+        status = Status.DONE;
+        setFinished();
+      }
+    }
+
+    synchronized void fail(String error) {
+      results = error + "\n";
+      status = Status.FAILED;
+      setFinished();
+    }
+
+    /** Stops the job, abandoning the chunk it is searching, if it isn't done already. */
+    synchronized void cancel() {
+      if (status == Status.QUEUED || status == Status.RUNNING) {
+        search.stop("Cancelled");
+        status = Status.CANCELLED;
+        setFinished();
+      }
+    }
+
+    private void setFinished() {
+      if (finishedAt == 0) {
+        finishedAt = System.currentTimeMillis();
+      }
+      notifyAll();
+    }
+
+    /** Waits up to millis for the job to stop running. */
+    synchronized void await(long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      long left = millis;
+      while ((status == Status.QUEUED || status == Status.RUNNING) && left > 0) {
+        wait(left);
+        left = deadline - System.currentTimeMillis();
+      }
+    }
+
+    synchronized String describe() {
+      return String.format("STATUS: %s\nSEARCHED: %d of %d keys\n\n%s", status, searched,
+          size(), results);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new CrackingServer().doMain(args);
+  }
+}
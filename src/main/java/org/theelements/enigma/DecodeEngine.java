@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * How a search decodes the message for each key.
+ */
+public enum DecodeEngine {
+  /** Sets up the machine at each start position and steps it for every letter. */
+  STEP,
+  /**
+   * Reads each start position's rotor positions from a StateSequence, walked once for each pair
+   * of middle and right rotors. Only used with the rings at A, otherwise falls back to STEP.
+   */
+  CYCLE,
+  /**
+   * Like CYCLE, but decodes several start positions at once with a LaneDecoder, in SIMD lanes
+   * when the Vector API decoder is available and one after the other otherwise.
+   */
+  VECTOR
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+/**
+ * Encrypts or decrypts bulk ASCII text with an Enigma machine, which are the same operation. The
+ * letters A-Z and a-z are passed through the machine, keeping their case, and every other byte is
+ * copied unchanged without pressing a key. Bytes are translated in place in one reusable direct
+ * buffer, or straight from one memory mapped file to another, so nothing is allocated per
+ * character.
+ *
+ * <p>The rotors only have 26 * 26 * 26 states, so after at most that many key presses they repeat
+ * a cycle. The permutation the machine makes at every press up to the end of the first cycle is
+ * recorded once, about 450 KB, and each letter is then a single lookup in it. The recorded press
+ * any letter is at is found with EnigmaMachine.seek() from the number of letters before it, so a
+ * mapped file can be split into chunks that are translated on several threads at once.
+ *
+ * <pre>
+ * java -cp build/libs/enigma-java-1.0.0-all.jar org.theelements.enigma.EnigmaCodec \
+ *     -rotors 1,2,3 -reflector B -key AAB -input plain.txt -output secret.txt
+ * </pre>
+ */
+public class EnigmaCodec {
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int SCRATCH_SIZE = 1 << 14;
+  // Files are mapped this much at a time.
+  private static final long MAP_SIZE = 1L << 26;
+  // Smaller chunks aren't worth a task of their own.
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+  // The letter index of each byte, or -1 for bytes that are copied unchanged.
+  private static final byte[] LETTER_INDEXES = new byte[256];
+  static {
+    for (int b = 0; b < 256; b++) {
+      LETTER_INDEXES[b] = (byte) (b >= 'A' && b <= 'Z' ? b - 'A'
+          : b >= 'a' && b <= 'z' ? b - 'a' : -1);
+    }
+  }
+
+  @Option(name="-rotors", usage="The left, middle and right rotors.")
+  private String rotors = "1, 2, 3";
+
+  @Option(name="-reflector", usage="The reflector.")
+  private String reflector = "B";
+
+  @Option(name="-key", usage="The starting positions of the rotors.")
+  private String key = "AAA";
+
+  @Option(name="-rings", usage="The ring settings of the rotors.")
+  private String rings = "AAA";
+
+  @Option(name="-plugboard", usage="Space separated plugboard pairs.")
+  private String plugboard = "";
+
+  @Option(name="-input", usage="The file to read, - for stdin.")
+  private String input = "-";
+
+  @Option(name="-output", usage="The file to write, - for stdout.")
+  private String output = "-";
+
+  @Option(name="-num_threads",
+      usage="The number of threads translating a file, when both -input and -output are files.")
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+
+  private ByteBuffer buffer;
+  private byte[] scratch;
+  private EnigmaMachineConfig config;
+  // The machine's permutation at each key press, indexed by [press * 26 + input], and the
+  // presses where the cycle starts and where it ends and starts again.
+  private byte[] permutations;
+  private int cycleStart;
+  private int cycleEnd;
+  // The first recorded press with each state, see EnigmaMachine.getState().
+  private int[] firstPress;
+  // The letters translated so far, in every call.
+  private long letters;
+  private long bytesTranslated;
+
+  /** Only for the command line, see doMain(). */
+  public EnigmaCodec() {
+  }
+
+  /** Translates with a machine set up by config, continuing from one call to the next. */
+  public EnigmaCodec(EnigmaMachineConfig config) {
+    this(config, BUFFER_SIZE);
+  }
+
+  EnigmaCodec(EnigmaMachineConfig config, int bufferSize) {
+    init(config, bufferSize);
+  }
+
+  private void init(EnigmaMachineConfig config, int bufferSize) {
+    buffer = ByteBuffer.allocateDirect(bufferSize);
+    scratch = new byte[Math.min(bufferSize, SCRATCH_SIZE)];
+    this.config = config;
+
+    // One more press than there are states is sure to repeat one.
+    int presses = 26 * 26 * 26 + 1;
+    int[] states = new int[presses];
+    permutations = new byte[presses * 26];
+    new EnigmaMachine(config).recordPermutations(presses, states, permutations);
+    firstPress = new int[26 * 26 * 26];
+    Arrays.fill(firstPress, -1);
+    for (int i = 0; i < presses; i++) {
+      if (firstPress[states[i]] >= 0) {
+        cycleStart = firstPress[states[i]];
+        cycleEnd = i;
+        break;
+      }
+      firstPress[states[i]] = i;
+    }
+  }
+
+  /**
+   * Translates everything read from in and writes it to out, returns the number of bytes. The
+   * channels are not closed.
+   */
+  public long transform(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+    long total = 0;
+    buffer.clear();
+    while (in.read(buffer) >= 0) {
+      buffer.flip();
+      letters += translate(buffer, buffer, 0, buffer.limit(), scratch, pressAfter(letters));
+      total += buffer.limit();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      buffer.clear();
+    }
+    bytesTranslated += total;
+    return total;
+  }
+
+  /**
+   * Translates the input file into the output file by mapping both into memory, returns the
+   * number of bytes. The output file is replaced, and may be the input file.
+   */
+  public long transform(File inputFile, File outputFile) throws IOException {
+    return transform(inputFile, outputFile, null);
+  }
+
+  /**
+   * Like transform(File, File), but splits the file into chunks that are translated at the same
+   * time on pool's threads. The output is the same, each chunk jumps straight to the key press
+   * its first letter is at. Null for pool translates on the calling thread.
+   */
+  public long transform(File inputFile, File outputFile, ForkJoinPool pool) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(inputFile, "r");
+    try {
+      RandomAccessFile out = new RandomAccessFile(outputFile, "rw");
+      try {
+        FileChannel inChannel = in.getChannel();
+        FileChannel outChannel = out.getChannel();
+        long size = inChannel.size();
+        out.setLength(size);
+        for (long position = 0; position < size; position += MAP_SIZE) {
+          int length = (int) Math.min(MAP_SIZE, size - position);
+          MappedByteBuffer source = inChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+          MappedByteBuffer target =
+              outChannel.map(FileChannel.MapMode.READ_WRITE, position, length);
+          if (pool == null) {
+            letters += translate(source, target, 0, length, scratch, pressAfter(letters));
+          } else {
+            translateInParallel(source, target, length, pool);
+          }
+        }
+        bytesTranslated += size;
+        return size;
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  // Translates length bytes of source into target, one chunk for each task.
+  private void translateInParallel(final ByteBuffer source, final ByteBuffer target, int length,
+      ForkJoinPool pool) {
+    int chunks = Math.max(1, Math.min(length / MIN_CHUNK_SIZE, pool.getParallelism() * 4));
+    final int chunkSize = (length + chunks - 1) / chunks;
+
+    // The letters in each chunk give the key press each one starts at.
+    List<Callable<Long>> counts = Lists.newArrayList();
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      final int offset = chunk * chunkSize;
+      final int count = Math.min(chunkSize, length - offset);
+      counts.add(new Callable<Long>() {
+        @Override
+        public Long call() {
+          return countLetters(source.duplicate(), offset, count, new byte[SCRATCH_SIZE]);
+        }
+      });
+    }
+
+    List<Long> chunkLetters = invokeAll(pool, counts);
+    List<Callable<Long>> translations = Lists.newArrayList();
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      final int offset = chunk * chunkSize;
+      final int count = Math.min(chunkSize, length - offset);
+      final int startPress = pressAfter(letters);
+      translations.add(new Callable<Long>() {
+        @Override
+        public Long call() {
+          return translate(source.duplicate(), target.duplicate(), offset, count,
+              new byte[SCRATCH_SIZE], startPress);
+        }
+      });
+      letters += chunkLetters.get(chunk);
+    }
+    invokeAll(pool, translations);
+  }
+
+  /** The number of bytes translated by this codec so far. */
+  public long getBytesTranslated() {
+    return bytesTranslated;
+  }
+
+  // Translates length bytes from offset in source into target, which may be the same buffer,
+  // starting at press and returning the number of letters. The bytes are copied through scratch
+  // in bulk, which is much faster than a get and put per byte.
+  private long translate(ByteBuffer source, ByteBuffer target, int offset, int length,
+      byte[] scratch, int press) {
+    byte[] permutations = this.permutations;
+    long letters = 0;
+    int base = press * 26;
+    int cycleStartBase = cycleStart * 26;
+    int cycleEndBase = cycleEnd * 26;
+    for (int done = 0; done < length; done += scratch.length) {
+      int count = Math.min(scratch.length, length - done);
+      source.position(offset + done);
+      source.get(scratch, 0, count);
+      for (int i = 0; i < count; i++) {
+        byte b = scratch[i];
+        int index = LETTER_INDEXES[b & 0xFF];
+        if (index >= 0) {
+          // Lower case letters differ from upper case ones only in this bit.
+          scratch[i] = (byte) (('A' + permutations[base + index]) | (b & 0x20));
+          letters++;
+          base += 26;
+          if (base == cycleEndBase) {
+            base = cycleStartBase;
+          }
+        }
+      }
+      target.position(offset + done);
+      target.put(scratch, 0, count);
+    }
+    source.position(0);
+    target.position(0);
+    return letters;
+  }
+
+  private static long countLetters(ByteBuffer source, int offset, int length, byte[] scratch) {
+    long letters = 0;
+    for (int done = 0; done < length; done += scratch.length) {
+      int count = Math.min(scratch.length, length - done);
+      source.position(offset + done);
+      source.get(scratch, 0, count);
+      for (int i = 0; i < count; i++) {
+        if (LETTER_INDEXES[scratch[i] & 0xFF] >= 0) {
+          letters++;
+        }
+      }
+    }
+    return letters;
+  }
+
+  // The recorded press the letter after letters letters is at. The machine is moved straight
+  // there with seek(), then its state is looked up among the recorded presses.
+  private int pressAfter(long letters) {
+    EnigmaMachine machine = new EnigmaMachine(config);
+    machine.seek(letters + 1);
+    return firstPress[machine.getState()];
+  }
+
+  private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) {
+    List<T> results = Lists.newArrayList();
+    try {
+      for (Future<T> future : pool.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  public void doMain(String[] args) throws Exception {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
+    List<Rotor> rotorList = Lists.newArrayList();
+    for (String name : splitter.split(rotors)) {
+      rotorList.add(lookup(name));
+    }
+    if (rotorList.size() != 3 || key.length() != 3 || rings.length() != 3) {
+      throw new Exception("You must specify 3 rotors, a 3 letter key and 3 letter rings.");
+    }
+    Rotor reflectorRotor = lookup(reflector.trim());
+    String upperKey = key.toUpperCase();
+    String upperRings = rings.toUpperCase();
+    EnigmaMachineConfig config = new EnigmaMachineConfig(upperKey.charAt(0), upperKey.charAt(1),
+        upperKey.charAt(2), rotorList.get(0), rotorList.get(1), rotorList.get(2), reflectorRotor)
+        .setRings(upperRings.charAt(0), upperRings.charAt(1), upperRings.charAt(2))
+        .setPlugboard(Plugboard.parse(plugboard));
+    init(config, BUFFER_SIZE);
+
+    long start = System.nanoTime();
+    if (!input.equals("-") && !output.equals("-")) {
+      ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+      try {
+        transform(new File(input), new File(output), pool);
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    } else {
+      ReadableByteChannel in = input.equals("-")
+          ? Channels.newChannel(System.in) : new FileInputStream(input).getChannel();
+      WritableByteChannel out = output.equals("-")
+          ? Channels.newChannel(System.out) : new FileOutputStream(output).getChannel();
+      try {
+        transform(in, out);
+      } finally {
+        in.close();
+        out.close();
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.println(String.format("Translated %d bytes in %.3fs, %.3f GB/s", bytesTranslated,
+        seconds, bytesTranslated / seconds / 1e9));
+  }
+
+  private static Rotor lookup(String name) throws Exception {
+    Rotor rotor = Rotor.getRotorByName(name);
+    if (rotor == null) {
+      throw new Exception(String.format("Rotor %s does not exist, check your command line.",
+          name));
+    }
+    return rotor;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new EnigmaCodec().doMain(args);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Packs a key from the search space into a single long so candidates can be tracked without
+ * allocating. The rotor order and reflector are indexes into the lists the search was given.
+ *
+ * <pre>
+ * bits  0-4   position of rotor 3
+ * bits  5-9   position of rotor 2
+ * bits 10-14  position of rotor 1
+ * bits 15-19  reflector index
+ * bits 20-31  rotor order index
+ * bits 32-36  ring setting of rotor 2
+ * bits 37-41  ring setting of rotor 3
+ * </pre>
+ *
+ * The ring setting of rotor 1 is always 'A', it has the same effect as changing the position of
+ * rotor 1 since rotor 1 never turns another rotor over.
+ */
+final class EnigmaKey {
+
+  private EnigmaKey() { /* Static methods only. */ }
+
+  static long pack(int rotorOrder, int reflector, int position1, int position2, int position3) {
+    return ((long) rotorOrder << 20) | (reflector << 15) | (position1 << 10) | (position2 << 5)
+        | position3;
+  }
+
+  /** Returns the key with the ring settings of rotors 2 and 3 replaced. */
+  static long withRings(long key, int ring2, int ring3) {
+    return (key & 0xFFFFFFFFL) | ((long) ring2 << 32) | ((long) ring3 << 37);
+  }
+
+  static int rotorOrder(long key) {
+    return (int) (key >>> 20) & 0xFFF;
+  }
+
+  static int reflector(long key) {
+    return (int) (key >>> 15) & 0x1F;
+  }
+
+  static int position1(long key) {
+    return (int) (key >>> 10) & 0x1F;
+  }
+
+  static int position2(long key) {
+    return (int) (key >>> 5) & 0x1F;
+  }
+
+  static int position3(long key) {
+    return (int) key & 0x1F;
+  }
+
+  static int ring2(long key) {
+    return (int) (key >>> 32) & 0x1F;
+  }
+
+  static int ring3(long key) {
+    return (int) (key >>> 37) & 0x1F;
+  }
+}
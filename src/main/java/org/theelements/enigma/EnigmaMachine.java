@@ -16,7 +16,7 @@
 
 package org.theelements.enigma;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import com.google.common.base.Preconditions;
 
 public class EnigmaMachine {
 
@@ -31,9 +31,19 @@ public class EnigmaMachine {
     private Rotor rotorB;
     private Rotor rotorC;
     private Rotor reflector;
+    private InnerPermutationCache innerPermutations;
+    private Plugboard plugboard;
+    private char ringA = 'A';
+    private char ringB = 'A';
+    private char ringC = 'A';
 
     public EnigmaMachineConfig(char positionA, char positionB, char positionC, Rotor rotorA,
         Rotor rotorB, Rotor rotorC, Rotor reflector) {
+      this(positionA, positionB, positionC, rotorA, rotorB, rotorC, reflector, null);
+    }
+
+    public EnigmaMachineConfig(char positionA, char positionB, char positionC, Rotor rotorA,
+        Rotor rotorB, Rotor rotorC, Rotor reflector, InnerPermutationCache innerPermutations) {
       this.positionA = positionA;
       this.positionB = positionB;
       this.positionC = positionC;
@@ -41,15 +51,21 @@ public class EnigmaMachine {
       this.rotorB = rotorB;
       this.rotorC = rotorC;
       this.reflector = reflector;
+      this.innerPermutations = innerPermutations;
     }
-  }
 
-  private static ConcurrentLinkedQueue<EnigmaMachine> freeList;
+    /** Sets the plugboard, by default there is none. Returns this config. */
+    public EnigmaMachineConfig setPlugboard(Plugboard plugboard) {
+      this.plugboard = plugboard;
+      return this;
+    }
 
-  static {
-    freeList = new ConcurrentLinkedQueue<EnigmaMachine>();
-    for (int i = 0; i < 200000; i++) {
-      freeList.add(new EnigmaMachine());
+    /** Sets the ring settings (Ringstellung), by default they are all 'A'. Returns this config. */
+    public EnigmaMachineConfig setRings(char ringA, char ringB, char ringC) {
+      this.ringA = ringA;
+      this.ringB = ringB;
+      this.ringC = ringC;
+      return this;
     }
   }
 
@@ -63,52 +79,232 @@ public class EnigmaMachine {
   private int position2;
   private int position3;
 
+  // Ring settings, and the offset of each rotor's wiring which is position - ring.
+  private int ring1;
+  private int ring2;
+  private int ring3;
+  private int offset1;
+  private int offset2;
+  private int offset3;
+
+  // Compiled lookup tables taken from the rotors, indexed by [position][inputIndex].
+  private int[][] forward1;
+  private int[][] forward2;
+  private int[][] forward3;
+  private int[][] reverse1;
+  private int[][] reverse2;
+  private int[][] reverse3;
+  private int[] reflectorTable;
+
+  // Composed table for rotor2 -> rotor1 -> reflector -> rotor1 -> rotor2, may be null.
+  private byte[] innerTable;
+
+  // When the atlas has the current rotors, the whole scrambler is one lookup.
+  private PermutationAtlas atlas;
+  private int atlasBase = -1;
+
+  // Plugboard wiring indexed by letter, null when there is no plugboard.
+  private int[] plugboard;
+
   private char rotor1Start;
   private char rotor2Start;
   private char rotor3Start;
 
+  /**
+   * Returns a new machine set up with the given config. Code that tries many keys should keep a
+   * single machine and call reset() instead.
+   */
   public static EnigmaMachine getEnigmaMachine(EnigmaMachineConfig config) {
-    if (freeList.isEmpty()) {
-      for (int i = 0; i < 100000; i++) {
-        freeList.add(new EnigmaMachine());
-      }
-    }
-    EnigmaMachine machine = freeList.poll();
-    machine.init(config);
-    return machine;
+    return new EnigmaMachine(config);
+  }
+
+  /**
+   * Creates a machine with no rotors, reset() must be called before it is used.
+   */
+  public EnigmaMachine() {
   }
 
-  public static void freeEnigmaMachine(EnigmaMachine machine) {
-    freeList.add(machine);
+  public EnigmaMachine(EnigmaMachineConfig config) {
+    reset(config);
   }
 
-  private EnigmaMachine() { /* No public constructor. */ }
+  /**
+   * Re-initializes this machine in place with a new config. Nothing is allocated, so a worker
+   * thread can own one machine and reset it for every key it tries.
+   */
+  public void reset(EnigmaMachineConfig config) {
+    setRotors(config.rotorA, config.rotorB, config.rotorC, config.reflector,
+        config.innerPermutations);
+    setRings(config.ringA - 'A', config.ringB - 'A', config.ringC - 'A');
+    setPositions(config.positionA - 'A', config.positionB - 'A', config.positionC - 'A');
+    setPlugboard(config.plugboard == null ? null : config.plugboard.getWiring());
+  }
+
+  /**
+   * Changes the rotors in the machine, the positions are left unchanged. Used by code that
+   * evaluates many keys with a single machine.
+   */
+  void setRotors(Rotor rotor1, Rotor rotor2, Rotor rotor3, Rotor reflector,
+      InnerPermutationCache innerPermutations) {
+    this.rotor1 = rotor1;
+    this.rotor2 = rotor2;
+    this.rotor3 = rotor3;
+    this.reflector = reflector;
+
+    forward1 = rotor1.getForwardTables();
+    forward2 = rotor2.getForwardTables();
+    forward3 = rotor3.getForwardTables();
+    reverse1 = rotor1.getReverseTables();
+    reverse2 = rotor2.getReverseTables();
+    reverse3 = rotor3.getReverseTables();
+    reflectorTable = reflector.getForwardTables()[0];
+    innerTable = innerPermutations == null
+        ? null : innerPermutations.get(rotor1, rotor2, reflector);
+    atlasBase = atlas == null ? -1 : atlas.getBase(rotor1, rotor2, rotor3, reflector);
+  }
+
+  /**
+   * Decodes with the permutations in atlas, null to stop. Takes effect at the next call to
+   * setRotors(), and rotors the atlas doesn't have fall back to the rotor tables.
+   */
+  void setAtlas(PermutationAtlas atlas) {
+    this.atlas = atlas;
+  }
+
+  /**
+   * Sets the plugboard wiring, indexed by letter - 'A'. Null means there is no plugboard. The
+   * array is not copied.
+   */
+  void setPlugboard(int[] plugboard) {
+    this.plugboard = plugboard;
+  }
+
+  /**
+   * Sets the ring setting of each rotor, all in the range [0, 26). Must be followed by a call to
+   * setPositions().
+   */
+  void setRings(int ring1, int ring2, int ring3) {
+    this.ring1 = ring1;
+    this.ring2 = ring2;
+    this.ring3 = ring3;
+  }
 
-  private void init(EnigmaMachineConfig config) {
-    this.rotor1 = config.rotorA;
-    this.rotor2 = config.rotorB;
-    this.rotor3 = config.rotorC;
-    this.reflector = config.reflector;
-    this.position1 = config.positionA - 'A';
-    this.position2 = config.positionB - 'A';
-    this.position3 = config.positionC - 'A';
+  /**
+   * Sets the starting position of each rotor, all positions are in the range [0, 26).
+   */
+  void setPositions(int position1, int position2, int position3) {
+    this.position1 = position1;
+    this.position2 = position2;
+    this.position3 = position3;
+    offset1 = wrap(position1 - ring1);
+    offset2 = wrap(position2 - ring2);
+    offset3 = wrap(position3 - ring3);
 
-    rotor1Start = config.positionA;
-    rotor2Start = config.positionB;
-    rotor3Start = config.positionC;
+    rotor1Start = LETTERS[position1];
+    rotor2Start = LETTERS[position2];
+    rotor3Start = LETTERS[position3];
   }
 
   public char step(final char letter) {
+    return LETTERS[stepIndex(letter - 'A')];
+  }
+
+  /**
+   * Index based version of step, both the input and the output are in the range [0, 26). This
+   * only uses the compiled rotor tables, so there is no boxing or map lookups. When the machine
+   * was configured with an InnerPermutationCache each key press is only three lookups.
+   */
+  public int stepIndex(final int index) {
+    moveRotors();
+    if (plugboard != null) {
+      return plugboard[scramble(plugboard[index])];
+    }
+    return scramble(index);
+  }
+
+  /** The rotors' offsets packed as {@code (offset1 * 26 + offset2) * 26 + offset3}. */
+  int getState() {
+    return (offset1 * 26 + offset2) * 26 + offset3;
+  }
+
+  /** Moves the rotors as if a key was pressed, without encoding anything. */
+  void stepRotors() {
     moveRotors();
+  }
+
+  /**
+   * Moves the rotors straight to where presses key presses would leave them, including every
+   * turnover and double step, without pressing them one at a time. The middle and right rotors
+   * run into a cycle of their states, see SteppingCycle, so this takes the same time for any
+   * number of presses.
+   */
+  public void seek(long presses) {
+    Preconditions.checkArgument(presses >= 0, "Can't seek back %s presses.", presses);
+    SteppingCycle cycle = SteppingCycle.get(rotor2, rotor3);
+    int state = position2 * 26 + position3;
+    int next = cycle.state(state, presses);
+    int moves = (int) (cycle.leftMoves(state, presses) % 26);
+    int left = (position1 + moves) % 26;
+    int middle = next / 26;
+    int right = next % 26;
+    // Unlike setPositions() this keeps the starting positions of the key.
+    position1 = left;
+    position2 = middle;
+    position3 = right;
+    offset1 = wrap(left - ring1);
+    offset2 = wrap(middle - ring2);
+    offset3 = wrap(right - ring3);
+  }
+
+  /**
+   * Presses the key presses times without encoding anything, recording for each press the right
+   * rotor's offset and the index of the left and middle rotors' offsets into the
+   * InnerPermutationCache table, {@code (offset1 * 26 + offset2) * 26}.
+   */
+  void recordOffsets(int presses, int[] rightOffsets, int[] innerBases) {
+    for (int i = 0; i < presses; i++) {
+      moveRotors();
+      rightOffsets[i] = offset3;
+      innerBases[i] = (offset1 * 26 + offset2) * 26;
+    }
+  }
+
+  /**
+   * Presses the key presses times without encoding anything, recording for each press the
+   * permutation of the whole machine, plugboard included, in {@code permutations[press * 26 +
+   * input]} and the rotors' state in states, {@code (offset1 * 26 + offset2) * 26 + offset3}.
+   */
+  void recordPermutations(int presses, int[] states, byte[] permutations) {
+    for (int i = 0; i < presses; i++) {
+      moveRotors();
+      states[i] = getState();
+      for (int input = 0; input < 26; input++) {
+        permutations[i * 26 + input] = (byte) (plugboard == null
+            ? scramble(input) : plugboard[scramble(plugboard[input])]);
+      }
+    }
+  }
 
-    int stepValue = getOutputIndex(rotor3, position3, letter - 'A', false);
-    stepValue = getOutputIndex(rotor2, position2, stepValue, false);
-    stepValue = getOutputIndex(rotor1, position1, stepValue, false);
-    stepValue = getOutputIndex(reflector, 0, stepValue, false);
-    stepValue = getOutputIndex(rotor1, position1, stepValue, true);
-    stepValue = getOutputIndex(rotor2, position2, stepValue, true);
-    stepValue = getOutputIndex(rotor3, position3, stepValue, true);
-    return LETTERS[stepValue];
+  /**
+   * Passes index through the rotors and reflector at their current positions, without moving
+   * them and without the plugboard.
+   */
+  int scramble(int index) {
+    if (atlasBase >= 0) {
+      return atlas.get(atlasBase, offset1, offset2, offset3, index);
+    }
+    int stepValue = forward3[offset3][index];
+    if (innerTable != null) {
+      stepValue = innerTable[(offset1 * 26 + offset2) * 26 + stepValue];
+      return reverse3[offset3][stepValue];
+    }
+
+    stepValue = forward2[offset2][stepValue];
+    stepValue = forward1[offset1][stepValue];
+    stepValue = reflectorTable[stepValue];
+    stepValue = reverse1[offset1][stepValue];
+    stepValue = reverse2[offset2][stepValue];
+    return reverse3[offset3][stepValue];
   }
 
   protected int getOutputIndex(Rotor rotor, int rotorOffset, int inputIndex, boolean reverse) {
@@ -122,24 +318,37 @@ public class EnigmaMachine {
     return value;
   }
 
+  // Turnovers depend on the positions, the ring settings only move the wiring.
   private void moveRotors() {
-    position3 = (position3 + 1) % 26;
+    position3 = next(position3);
+    offset3 = next(offset3);
     if (rotor3.turnover(position3)) {
-      position2 = (position2 + 1) % 26;
-      if (rotor2.turnover(position2)) {
-        position1 = (position1 + 1) % 26;
-      }
+      moveRotor2();
     }
 
     // Handles double-stepping case.
     if (rotor3.turnover(position3 - 1) && rotor2.turnover(position2 + 1)) {
-      position2 = (position2 + 1) % 26;
-      if (rotor2.turnover(position2)) {
-        position1 = (position1 + 1) % 26;
-      }
+      moveRotor2();
+    }
+  }
+
+  private void moveRotor2() {
+    position2 = next(position2);
+    offset2 = next(offset2);
+    if (rotor2.turnover(position2)) {
+      position1 = next(position1);
+      offset1 = next(offset1);
     }
   }
 
+  private static int next(int position) {
+    return position == 25 ? 0 : position + 1;
+  }
+
+  private static int wrap(int value) {
+    return value < 0 ? value + 26 : value;
+  }
+
   protected int[] moveRotorsWithResult() {
     moveRotors();
     return new int[] {position1, position2, position3};
@@ -154,6 +363,13 @@ public class EnigmaMachine {
     buf.append(rotor2.toString()).append(", ");
     buf.append(rotor3.toString()).append("\n");
     buf.append("REFLECTOR: " ).append(reflector.toString()).append("\n");
+    if (ring1 != 0 || ring2 != 0 || ring3 != 0) {
+      buf.append("RINGS: ").append(LETTERS[ring1]).append(LETTERS[ring2]).append(LETTERS[ring3])
+          .append("\n");
+    }
+    if (plugboard != null) {
+      buf.append("PLUGBOARD: ").append(Plugboard.fromWiring(plugboard)).append("\n");
+    }
     return buf.toString();
   }
 }
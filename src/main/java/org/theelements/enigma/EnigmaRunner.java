@@ -16,33 +16,35 @@
 
 package org.theelements.enigma;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
+import org.theelements.collect.ScoredKeys;
 import org.theelements.collect.SortedFixedSizedList;
-import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
+import org.theelements.enigma.SearchStats.Phase;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class EnigmaRunner {
 
-  private static class Triple<T> {
-    public T o1;
-    public T o2;
-    public T o3;
-
-    public Triple(T o1, T o2, T o3) {
-      this.o1 = o1;
-      this.o2 = o2;
-      this.o3 = o3;
-    }
-  }
-
   protected static class EnigmaResult implements Comparable<EnigmaResult> {
     private String message;
     private String settings;
@@ -66,7 +68,7 @@ public class EnigmaRunner {
     public String toString() {
       StringBuilder buf = new StringBuilder();
       buf.append("SETTINGS:\n").append(settings).append("\n");
-      buf.append("FREQUENCY SCORE (smaller is better): ").append(difference).append("\n");
+      buf.append("SCORE (smaller is better): ").append(difference).append("\n");
       buf.append("MESSAGE:\n").append(message).append("\n");
       return buf.toString();
     }
@@ -77,44 +79,6 @@ public class EnigmaRunner {
     }
   }
 
-  private static class EnigmaCallable implements Callable<EnigmaResult> {
-    private EnigmaMachine machine;
-    private FrequencyAnalysis analysis;
-    private final char[] message;
-    private String crib;
-
-    public EnigmaCallable(EnigmaMachineConfig config, final char[] message, String crib) {
-      this.message = message;
-      this.crib = crib;
-      machine = EnigmaMachine.getEnigmaMachine(config);
-      analysis = new FrequencyAnalysis();
-    }
-
-    @Override
-    public EnigmaResult call() throws Exception {
-      StringBuilder result = new StringBuilder();
-
-      char letter;
-      for (char c : message) {
-        letter = machine.step(c);
-        result.append(letter);
-        analysis.add(letter);
-      }
-
-      String decodedMessage = result.toString();
-      double score = analysis.calculateDifference();
-      if (crib != null) {
-        if (decodedMessage.contains(crib)) {
-          System.out.println("=== Found crib in the message: " + decodedMessage + " ===");
-          score -= crib.length() * 100;
-        }
-      }
-      EnigmaResult enigmaResult = new EnigmaResult(decodedMessage, score, machine.toString());
-      EnigmaMachine.freeEnigmaMachine(machine);
-      return enigmaResult;
-    }
-  }
-
   @Option(name="-message", usage="The encrypted message to crack.")
   private String message = null;
 
@@ -128,19 +92,148 @@ public class EnigmaRunner {
   private String reflectors = "A, B, C";
 
   @Option(name="-num_threads", usage="The number of threads to use when running.")
-  private int numThreads = 8;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
 
   @Option(name="-results", usage="The number of results to display.")
   private int numResults = 3;
 
+  @Option(name="-scorer", usage="How to score decoded messages: FREQUENCY, IOC, BIGRAM, TRIGRAM "
+      + "or QUADGRAM.")
+  private ScoringMethod scoringMethod = ScoringMethod.FREQUENCY;
+
+  @Option(name="-ring_search", usage="Also search for the ring settings of the middle and right "
+      + "rotors.")
+  private boolean ringSearch = false;
+
+  @Option(name="-ring_search_keys", usage="The number of best keys, found with the rings at A, to "
+      + "try every ring setting for.")
+  private int ringSearchKeys = 200;
+
+  @Option(name="-plugboard_search", usage="Also search for plugboard settings by hill climbing.")
+  private boolean plugboardSearch = false;
+
+  @Option(name="-hill_climb_keys", usage="The number of best keys, found without a plugboard, to "
+      + "hill climb plugboards from.")
+  private int hillClimbKeys = 1000;
+
+  @Option(name="-restarts", usage="The number of hill climbs for each key.")
+  private int restarts = 3;
+
+  @Option(name="-max_plugs", usage="The most plugboard pairs to try.")
+  private int maxPlugs = 10;
+
+  @Option(name="-time_limit", usage="Seconds to spend hill climbing before giving the best "
+      + "plugboards found so far.")
+  private int timeLimit = 600;
+
+  @Option(name="-bombe", usage="Find the plugboard with a bombe style menu built from the crib.")
+  private boolean bombe = false;
+
+  @Option(name="-crib_offset", usage="Where the crib starts in the message, by default every "
+      + "possible place is tried.")
+  private int cribOffset = -1;
+
+  @Option(name="-min_loops", usage="With -bombe, skip the places the crib could be whose menu "
+      + "has fewer loops than this. Ignored with -crib_offset.")
+  private int minLoops = 1;
+
+  @Option(name="-crib_first", usage="Only decode and score keys that put the crib somewhere in "
+      + "the message, checking the letters under the crib first.")
+  private boolean cribFirst = false;
+
+  @Option(name="-batch", usage="Crack every message in this file, or - for stdin. Each line is "
+      + "a message, optionally followed by a space and a crib for it.")
+  private String batch = null;
+
+  @Option(name="-batch_size", usage="The number of messages from -batch searched together in one "
+      + "pass over the keys.")
+  private int batchSize = 64;
+
+  @Option(name="-atlas", usage="Decode with the permutations in this file, written by "
+      + "PermutationAtlasBuilder, instead of the rotor tables.")
+  private String atlas = null;
+
+  @Option(name="-engine", usage="How to decode the message for each key: STEP, CYCLE or VECTOR.")
+  private DecodeEngine engine = DecodeEngine.STEP;
+
+  @Option(name="-progress", usage="Print the progress of the key search every this many seconds, "
+      + "0 for never.")
+  private int progressSeconds = 0;
+
+  @Option(name="-checkpoint", usage="Save the progress of the key search to this file, so it can "
+      + "be continued with -resume.")
+  private String checkpoint = null;
+
+  @Option(name="-checkpoint_seconds", usage="How often to save the -checkpoint file.")
+  private int checkpointSeconds = 60;
+
+  @Option(name="-resume", usage="Continue the search saved in the -checkpoint file, if there is "
+      + "one.")
+  private boolean resume = false;
+
+  @Option(name="-coordinator", usage="Hand the key search out to -worker processes connecting to "
+      + "this port, 0 for any free port.")
+  private int coordinatorPort = -1;
+
+  @Option(name="-worker", usage="Search keys for the -coordinator at host:port until it has no "
+      + "more.")
+  private String worker = null;
+
+  @Option(name="-coordinator_bind", usage="The address the -coordinator listens on, the loopback "
+      + "address by default. Any other address needs a -token.")
+  private String coordinatorBind = null;
+
+  @Option(name="-token", usage="A secret the -worker processes send to the -coordinator before "
+      + "they are given the message.")
+  private String token = "";
+
+  @Option(name="-lease_size", usage="The number of keys the coordinator hands a worker at a time.")
+  private long leaseSize = KeySpace.POSITIONS;
+
+  @Option(name="-lease_seconds", usage="How long a worker has to search a lease before the "
+      + "coordinator hands it to another worker.")
+  private int leaseSeconds = 60;
+
+  @Option(name="-stop_score", usage="Stop the key search as soon as a key scores this or better.")
+  private double stopScore = Double.NaN;
+
+  @Option(name="-stop_margin", usage="Stop the key search as soon as the best key scores this "
+      + "much better than the second best, needs -results of 2 or more.")
+  private double stopMargin = Double.NaN;
+
+  @Option(name="-stop_on_crib", usage="Stop the key search as soon as the best key decodes the "
+      + "crib. With several -stop options they all have to hold.")
+  private boolean stopOnCrib = false;
+
+  @Option(name="-slice_order", usage="The order the key search visits rotor orders and "
+      + "reflectors in: INDEX, LIKELY or PRESCORE.")
+  private SliceOrder sliceOrder = SliceOrder.INDEX;
+
+  @Option(name="-likely_orders", usage="Wheel orders searched first with -slice_order LIKELY, "
+      + "such as 2,1,5;3,1,2.")
+  private String likelyOrders = "";
+
+  @Option(name="-time_budget", usage="Stop the key search after this many seconds and give the "
+      + "best keys found so far, 0 for no limit.")
+  private int timeBudget = 0;
+
+  @Option(name="-snapshot_seconds", usage="Print the best keys found so far every this many "
+      + "seconds while the key search runs, if they have improved. 0 for never.")
+  private int snapshotSeconds = 0;
+
+  private SearchStats stats = new SearchStats(0);
+
   public void doMain(String[] args) throws Exception {
     CmdLineParser parser = new CmdLineParser(this);
     parser.parseArgument(args);
 
-    if (message == null) {
+    if (worker != null) {
+      runWorker();
+      return;
+    }
+    if (message == null && batch == null) {
       throw new Exception("You must provide a message to be cracked.");
     }
-    char[] messageArray = message.toCharArray();
 
     List<Rotor> rotorsToUse = Lists.newArrayList();
     String [] splitRotors = rotors.split(",");
@@ -170,71 +263,508 @@ public class EnigmaRunner {
       reflectorsToUse.add(reflector);
     }
 
-    SortedFixedSizedList<EnigmaResult> results = run(messageArray, rotorsToUse, reflectorsToUse,
-        numResults, numThreads);
+    if (batch != null) {
+      BufferedReader input = batch.equals("-")
+          ? new BufferedReader(new InputStreamReader(System.in, Charsets.US_ASCII))
+          : Files.newReader(new File(batch), Charsets.US_ASCII);
+      try {
+        runBatch(input, System.out, rotorsToUse, reflectorsToUse, numResults, numThreads);
+      } finally {
+        input.close();
+      }
+      return;
+    }
+
+    SortedFixedSizedList<EnigmaResult> results = run(message.toCharArray(), rotorsToUse,
+        reflectorsToUse, numResults, numThreads);
 
     for (EnigmaResult result : results) {
       System.out.println(result);
       System.out.println("==============================");
     }
+
+    System.out.print(stats.formatSummary());
+    long evaluated = getCandidatesEvaluated();
+    if (cribFirst) {
+      System.out.println(String.format("Rejected %d of %d candidates by the crib",
+          getCandidatesRejectedByCrib(), evaluated));
+    }
+    System.out.println(String.format("Pruned %d of %d candidates (%.1f%%)", getCandidatesPruned(),
+        evaluated, evaluated == 0 ? 0.0 : 100.0 * getCandidatesPruned() / evaluated));
+  }
+
+  public void setScoringMethod(ScoringMethod scoringMethod) {
+    this.scoringMethod = scoringMethod;
+  }
+
+  public void setEngine(DecodeEngine engine) {
+    this.engine = engine;
+  }
+
+  public void setProgressSeconds(int progressSeconds) {
+    this.progressSeconds = progressSeconds;
+  }
+
+  /**
+   * The counters and timings of the last call to run(), or of the current one while it runs.
+   * Only the key search counts keys, the bombe and plugboard searches just record timings.
+   */
+  public SearchStats getStats() {
+    return stats;
+  }
+
+  /** The number of keys tried by the last call to run(). */
+  public long getCandidatesEvaluated() {
+    return stats.getKeysEvaluated();
+  }
+
+  /** The number of keys the last call to run() gave up on before decoding the whole message. */
+  public long getCandidatesPruned() {
+    return stats.getKeysPruned();
+  }
+
+  /**
+   * The number of keys the last call to run() rejected after decoding only the letters under
+   * the crib, these are not counted by getCandidatesPruned().
+   */
+  public long getCandidatesRejectedByCrib() {
+    return stats.getKeysRejectedByCrib();
   }
 
   public SortedFixedSizedList<EnigmaResult> run(char[] message, List<Rotor> rotorList,
       List<Rotor> reflectors, int numResults, int numThreads) throws Exception {
+    Stopwatch setup = Stopwatch.createStarted();
+    KeySpace keySpace = new KeySpace(rotorList, reflectors);
+    stats = new SearchStats(keySpace.size());
+    // Shared read-only by all of the worker threads.
+    InnerPermutationCache innerPermutations = InnerPermutationCache.build(rotorList, reflectors);
+
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    // Runs the progress reports and checkpoints.
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("search-timer").build());
+    if (progressSeconds > 0) {
+      timer.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          System.err.println(stats.formatProgress());
+        }
+      }, progressSeconds, progressSeconds, TimeUnit.SECONDS);
+    }
+    StopCriterion stopCriterion = new StopCriterion().setScore(stopScore)
+        .setMargin(stopMargin).setCribMatch(stopOnCrib);
+    try {
+      boolean anytime = stopCriterion.isSet() || sliceOrder != SliceOrder.INDEX
+          || timeBudget > 0 || snapshotSeconds > 0;
+      if (anytime && (bombe || plugboardSearch || coordinatorPort >= 0)) {
+        throw new IllegalArgumentException("The -stop, -slice_order, -time_budget and "
+            + "-snapshot_seconds options only apply to the key search.");
+      }
+      if (bombe) {
+        if (ringSearch || plugboardSearch) {
+          throw new IllegalArgumentException(
+              "The bombe can't be combined with the ring or plugboard searches.");
+        }
+        stats.setPhaseNanos(Phase.SETUP, setup.elapsed(TimeUnit.NANOSECONDS));
+        return runBombe(message, keySpace, innerPermutations, numResults, pool);
+      }
+      if (plugboardSearch) {
+        if (ringSearch) {
+          throw new IllegalArgumentException(
+              "Ring and plugboard searches can't be combined yet.");
+        }
+        stats.setPhaseNanos(Phase.SETUP, setup.elapsed(TimeUnit.NANOSECONDS));
+        return runPlugboardSearch(message, keySpace, innerPermutations, numResults, pool);
+      }
+      if (coordinatorPort >= 0) {
+        if (ringSearch || cribFirst || checkpoint != null) {
+          throw new IllegalArgumentException(
+              "The coordinator only supports the basic key search.");
+        }
+        if (leaseSize < 1 || leaseSeconds < 1) {
+          throw new IllegalArgumentException("-lease_size and -lease_seconds must be at least 1.");
+        }
+        stats.setPhaseNanos(Phase.SETUP, setup.elapsed(TimeUnit.NANOSECONDS));
+        return runCoordinator(message, rotorList, reflectors, keySpace, innerPermutations,
+            numResults);
+      }
+
+      int[] cribOffsets = null;
+      if (cribFirst) {
+        if (ringSearch) {
+          throw new IllegalArgumentException(
+              "Crib first decoding can't be combined with the ring search.");
+        }
+        cribOffsets = findCribOffsets(message);
+      }
+
+      Scorer scorer = scoringMethod.getScorer();
+      KeySearch search = new KeySearch(keySpace, innerPermutations, message, crib, scorer,
+          cribOffsets, ringSearch ? Math.max(numResults, ringSearchKeys) : numResults);
+      if (atlas != null) {
+        search.setAtlas(PermutationAtlas.open(new File(atlas)));
+      }
+      if (engine == DecodeEngine.VECTOR && !LaneDecoder.isVectorAvailable()) {
+        System.out.println("The Vector API decoder isn't available, build it with gradle -Pvector "
+            + "and add --add-modules jdk.incubator.vector to the java command line. Using the "
+            + "scalar lane decoder.");
+      }
+      search.setEngine(engine);
+      search.setStats(stats);
+      search.setStopCriterion(stopCriterion);
+      search.setPrioritizer(prioritizer(message, scorer, innerPermutations));
+      if (checkpoint != null) {
+        startCheckpoints(search, timer, fingerprint(message, rotorList, reflectors, numResults,
+            cribOffsets));
+      } else if (resume) {
+        throw new IllegalArgumentException("-resume needs a -checkpoint file.");
+      }
+      if (timeBudget > 0) {
+        // The budget includes the setup.
+        final KeySearch budgeted = search;
+        timer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            budgeted.stop(String.format("the time budget of %ds ran out", timeBudget));
+          }
+        }, TimeUnit.SECONDS.toMillis(timeBudget) - setup.elapsed(TimeUnit.MILLISECONDS),
+            TimeUnit.MILLISECONDS);
+      }
+      if (snapshotSeconds > 0) {
+        startSnapshots(search, timer, keySpace, innerPermutations, message, numResults);
+      }
+      stats.setPhaseNanos(Phase.SETUP, setup.elapsed(TimeUnit.NANOSECONDS));
+
+      Stopwatch searching = Stopwatch.createStarted();
+      ScoredKeys best = search.run(pool);
+      if (checkpoint != null) {
+        search.saveCheckpoint();
+      }
+      if (ringSearch) {
+        // A second pass over the ring settings of the best keys.
+        best = new RingSearch(keySpace, innerPermutations, message, crib, scorer)
+            .run(pool, best, numResults);
+      }
+      stats.setPhaseNanos(Phase.SEARCH, searching.elapsed(TimeUnit.NANOSECONDS));
+
+      return materialize(best, keySpace, innerPermutations, message, numResults);
+    } finally {
+      timer.shutdownNow();
+      pool.shutdown();
+    }
+  }
+
+  /** Decodes the best keys into results, only the winners are decoded into strings. */
+  private SortedFixedSizedList<EnigmaResult> materialize(ScoredKeys best, KeySpace keySpace,
+      InnerPermutationCache innerPermutations, char[] message, int numResults) {
+    Stopwatch merging = Stopwatch.createStarted();
     SortedFixedSizedList<EnigmaResult> finalResults =
         new SortedFixedSizedList<EnigmaResult>(numResults);
-    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    for (int i = 0; i < best.size(); i++) {
+      EnigmaMachine machine =
+          new EnigmaMachine(keySpace.getConfig(best.getKey(i), innerPermutations));
+      finalResults.maybeAdd(materialize(machine, best.getScore(i), message));
+    }
+    stats.setPhaseNanos(Phase.MERGE, merging.elapsed(TimeUnit.NANOSECONDS));
+    return finalResults;
+  }
 
-    List<Character> letters = Lists.newArrayListWithCapacity(26);
-    for (Character c : "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray()) {
-      letters.add(c);
+  /**
+   * Waits for -worker processes to search the key space in leases and merges their results.
+   */
+  private SortedFixedSizedList<EnigmaResult> runCoordinator(char[] message,
+      List<Rotor> rotorList, List<Rotor> reflectors, KeySpace keySpace,
+      InnerPermutationCache innerPermutations, int numResults) throws Exception {
+    SearchJob job = new SearchJob(new String(message), crib, rotorList, reflectors,
+        scoringMethod, engine, numResults);
+    InetAddress address = coordinatorBind == null
+        ? InetAddress.getLoopbackAddress() : InetAddress.getByName(coordinatorBind);
+    if (!address.isLoopbackAddress() && token.isEmpty()) {
+      throw new Exception("A -coordinator listening on " + coordinatorBind
+          + " needs a -token.");
     }
-    List<Triple<Character>> startingPositions = permutations(letters, true);
-    List<Triple<Rotor>> rotorPermutations = permutations(rotorList, false);
+    SearchCoordinator coordinator = new SearchCoordinator(job, leaseSize,
+        TimeUnit.SECONDS.toMillis(leaseSeconds), token);
+    Stopwatch searching = Stopwatch.createStarted();
+    ScoredKeys best;
+    try {
+      int port = coordinator.start(address, coordinatorPort);
+      System.out.println("Waiting for workers on " + address.getHostAddress() + " port " + port);
+      best = coordinator.awaitResults();
+    } finally {
+      coordinator.close();
+    }
+    stats.setPhaseNanos(Phase.SEARCH, searching.elapsed(TimeUnit.NANOSECONDS));
+    System.out.println(String.format("Handed out %d leases, %d of them again",
+        coordinator.getLeasesIssued(), coordinator.getLeasesReissued()));
+    return materialize(best, keySpace, innerPermutations, message, numResults);
+  }
 
-    for (Triple<Rotor> rotors : rotorPermutations) {
-      // TODO(mww): Come up with the correct initial capacity.
-      for (Rotor reflector : reflectors) {
+  /** Searches leases for the -coordinator at -worker until it has no more. */
+  private void runWorker() throws Exception {
+    int colon = worker.lastIndexOf(':');
+    if (colon < 0) {
+      throw new Exception("-worker must be host:port.");
+    }
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      SearchWorker searchWorker = new SearchWorker(pool);
+      int leases = searchWorker.run(worker.substring(0, colon),
+          Integer.parseInt(worker.substring(colon + 1)), token);
+      System.out.println(String.format("Searched %d leases, %d keys", leases,
+          searchWorker.getKeysSearched()));
+    } finally {
+      pool.shutdown();
+    }
+  }
 
-        List<EnigmaCallable> tasks = Lists.newArrayListWithCapacity(1000);
-        for (Triple<Character> startingPosition : startingPositions) {
-          EnigmaMachineConfig config = new EnigmaMachineConfig(startingPosition.o1,
-              startingPosition.o2, startingPosition.o3, rotors.o1, rotors.o2, rotors.o3,
-              reflector);
-          tasks.add(new EnigmaCallable(config, message, crib));
+  /**
+   * Loads or creates the -checkpoint file for search and saves it every -checkpoint_seconds.
+   */
+  private void startCheckpoints(final KeySearch search, ScheduledExecutorService timer,
+      String fingerprint) throws IOException {
+    File file = new File(checkpoint);
+    SearchCheckpoint saved;
+    if (resume && file.exists()) {
+      saved = SearchCheckpoint.load(file, fingerprint);
+      System.out.println(String.format("Resuming with %d keys already searched",
+          saved.getSearchedCount()));
+    } else {
+      saved = new SearchCheckpoint(file, fingerprint);
+    }
+    search.setCheckpoint(saved);
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          search.saveCheckpoint();
+        } catch (IOException e) {
+          System.err.println("Couldn't save the checkpoint: " + e.getMessage());
         }
+      }
+    }, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+  }
 
-        List<Future<EnigmaResult>> results = executor.invokeAll(tasks);
-
-        for (Future<EnigmaResult> future : results) {
-          EnigmaResult result = future.get();
-          finalResults.maybeAdd(result);
+  /**
+   * Prints the best keys found so far every -snapshot_seconds while the search runs, each time
+   * either the best or the last of them has improved.
+   */
+  private void startSnapshots(final KeySearch search, ScheduledExecutorService timer,
+      final KeySpace keySpace, final InnerPermutationCache innerPermutations,
+      final char[] message, final int numResults) {
+    timer.scheduleWithFixedDelay(new Runnable() {
+      private double firstScore = Double.POSITIVE_INFINITY;
+      private double lastScore = Double.POSITIVE_INFINITY;
+
+      @Override
+      public void run() {
+        ScoredKeys best = search.getBestSoFar();
+        int count = Math.min(numResults, best.size());
+        if (count == 0
+            || (best.getScore(0) >= firstScore && best.getScore(count - 1) >= lastScore)) {
+          return;
+        }
+        firstScore = best.getScore(0);
+        lastScore = best.getScore(count - 1);
+        StringBuilder buf = new StringBuilder(String.format(
+            "Best so far, with %.1f%% of the keys searched:\n", stats.getProgress() * 100));
+        for (int i = 0; i < count; i++) {
+          EnigmaMachine machine =
+              new EnigmaMachine(keySpace.getConfig(best.getKey(i), innerPermutations));
+          buf.append(materialize(machine, best.getScore(i), message, null));
         }
+        System.out.println(buf);
       }
+    }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+  }
+
+  /** The -slice_order prioritizer, or null to split the key space evenly. */
+  private SlicePrioritizer prioritizer(char[] message, Scorer scorer,
+      InnerPermutationCache innerPermutations) {
+    switch (sliceOrder) {
+      case LIKELY:
+        List<List<Rotor>> orders = Lists.newArrayList();
+        for (String order : Splitter.on(';').trimResults().omitEmptyStrings().split(likelyOrders)) {
+          List<Rotor> rotorOrder = Lists.newArrayList();
+          for (String name : Splitter.on(',').trimResults().split(order)) {
+            Rotor rotor = Rotor.getRotorByName(name);
+            if (rotor == null) {
+              throw new IllegalArgumentException(
+                  String.format("Rotor %s in -likely_orders does not exist.", name));
+            }
+            rotorOrder.add(rotor);
+          }
+          orders.add(rotorOrder);
+        }
+        return new LikelySlicePrioritizer(LikelySlicePrioritizer.REFLECTORS, orders);
+      case PRESCORE:
+        return new PreScoreSlicePrioritizer(message, scorer, innerPermutations);
+      default:
+        return null;
     }
+  }
+
+  /** Everything that changes which keys a search finds, a checkpoint only resumes a match. */
+  private String fingerprint(char[] message, List<Rotor> rotorList, List<Rotor> reflectors,
+      int numResults, int[] cribOffsets) {
+    return Joiner.on('|').useForNull("").join(new String(message), crib, rotorList, reflectors,
+        scoringMethod, ringSearch ? Math.max(numResults, ringSearchKeys) : numResults,
+        Arrays.toString(cribOffsets));
+  }
 
-    executor.shutdown();
+  /**
+   * Finds the best keys without a plugboard by index of coincidence, which survives an unknown
+   * plugboard, and then hill climbs plugboards for each of them with the chosen scorer.
+   */
+  private SortedFixedSizedList<EnigmaResult> runPlugboardSearch(char[] message,
+      KeySpace keySpace, InnerPermutationCache innerPermutations, int numResults,
+      ForkJoinPool pool) throws Exception {
+    KeySearch search = new KeySearch(keySpace, innerPermutations, message, null,
+        ScoringMethod.IOC.getScorer(), hillClimbKeys);
+    search.setStats(stats);
+    ScoredKeys candidates = search.run(pool);
+
+    // -time_limit only counts the hill climbing, not the key search before it.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeLimit);
+
+    PlugboardSearch plugboards = new PlugboardSearch(keySpace, innerPermutations, message, crib,
+        scoringMethod.getScorer(), restarts, maxPlugs, deadline);
+    SortedFixedSizedList<EnigmaResult> finalResults =
+        new SortedFixedSizedList<EnigmaResult>(numResults);
+    for (KeyResult result : plugboards.run(pool, candidates, numResults)) {
+      EnigmaMachine machine = new EnigmaMachine(
+          keySpace.getConfig(result.getKey(), innerPermutations)
+              .setPlugboard(result.getPlugboard()));
+      finalResults.maybeAdd(materialize(machine, result.getScore(), message));
+    }
     return finalResults;
   }
 
-  private <T> List<Triple<T>> permutations(List<T> items, boolean duplicates) {
-    List<Triple<T>> permutations = Lists.newArrayList();
-    for (T o1 : items) {
-      for (T o2 : items) {
-        if (!duplicates && o1.equals(o2)) {
-          continue;
+  /**
+   * Cracks every message read from input, batchSize messages at a time with one pass over the
+   * keys for each batch, and prints each message's results to out as soon as its batch is done.
+   * Lines are a message optionally followed by whitespace and a crib, blank lines and lines
+   * starting with # are skipped. Only the basic key search is supported, with the -scorer and
+   * each message's crib. Returns the number of messages cracked.
+   */
+  public int runBatch(BufferedReader input, PrintStream out, List<Rotor> rotorList,
+      List<Rotor> reflectors, int numResults, int numThreads) throws Exception {
+    if (ringSearch || plugboardSearch || bombe || cribFirst) {
+      throw new IllegalArgumentException("Batches only support the basic key search.");
+    }
+    KeySpace keySpace = new KeySpace(rotorList, reflectors);
+    InnerPermutationCache innerPermutations = InnerPermutationCache.build(rotorList, reflectors);
+    Scorer scorer = scoringMethod.getScorer();
+
+    stats = new SearchStats(0);
+    int cracked = 0;
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      List<char[]> messages = Lists.newArrayList();
+      List<String> cribs = Lists.newArrayList();
+      String line;
+      do {
+        line = input.readLine();
+        if (line != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] parts = line.split("\\s+");
+          messages.add(parts[0].toCharArray());
+          cribs.add(parts.length > 1 ? parts[1] : null);
         }
 
-        for (T o3 : items) {
-          if (!duplicates && (o1.equals(o2) || o1.equals(o3) || o2.equals(o3))) {
-            continue;
+        if (messages.size() == batchSize || (line == null && !messages.isEmpty())) {
+          BatchSearch search = new BatchSearch(keySpace, innerPermutations, messages, cribs,
+              scorer, numResults);
+          List<ScoredKeys> best = search.run(pool);
+          stats.addTotals(search.getCandidatesEvaluated(), search.getCandidatesPruned(), 0, 0);
+
+          for (int m = 0; m < messages.size(); m++) {
+            out.println("MESSAGE " + ++cracked + ": " + new String(messages.get(m)));
+            ScoredKeys keys = best.get(m);
+            for (int i = 0; i < keys.size(); i++) {
+              EnigmaMachine machine =
+                  new EnigmaMachine(keySpace.getConfig(keys.getKey(i), innerPermutations));
+              out.println(materialize(machine, keys.getScore(i), messages.get(m), cribs.get(m)));
+            }
+            out.println("==============================");
           }
-          permutations.add(new Triple<T>(o1, o2, o3));
+          out.flush();
+          messages.clear();
+          cribs.clear();
         }
+      } while (line != null);
+    } finally {
+      pool.shutdown();
+    }
+    return cracked;
+  }
+
+  /**
+   * Returns the offsets the crib can be at, which are the ones where none of its letters line up
+   * with the same letter in the message, or just -crib_offset if it was given.
+   */
+  private int[] findCribOffsets(char[] message) {
+    if (crib == null) {
+      throw new IllegalArgumentException("Crib first decoding needs a crib.");
+    }
+    int[] offsets = Menu.validOffsets(CandidateEvaluator.toIndexes(message),
+        CandidateEvaluator.toIndexes(crib.toCharArray()));
+    System.out.println(String.format("The crib fits at %d of %d offsets", offsets.length,
+        Math.max(0, message.length - crib.length() + 1)));
+    if (cribOffset >= 0) {
+      if (Arrays.binarySearch(offsets, cribOffset) < 0) {
+        throw new IllegalArgumentException(
+            String.format("The crib can't be at offset %d.", cribOffset));
       }
+      return new int[] {cribOffset};
+    }
+    return offsets;
+  }
+
+  /**
+   * Runs the bombe and decodes its stops with the plugboard pairs each one implied.
+   */
+  private SortedFixedSizedList<EnigmaResult> runBombe(char[] message, KeySpace keySpace,
+      InnerPermutationCache innerPermutations, int numResults, ForkJoinPool pool)
+      throws Exception {
+    BombeSearch search = new BombeSearch(keySpace, innerPermutations, message, crib,
+        scoringMethod.getScorer(), cribOffset, minLoops, numResults);
+    List<KeyResult> stops = search.run(pool);
+    stats.addTotals(search.getKeysTested(), search.getKeysRejected(), 0, 0);
+    System.out.println(String.format(
+        "Bombe tried the crib at %d offsets, skipped %d with fewer than %d loops, %d stops",
+        search.getMenuCount(), search.getSkippedMenuCount(), minLoops, search.getStops()));
+
+    SortedFixedSizedList<EnigmaResult> finalResults =
+        new SortedFixedSizedList<EnigmaResult>(numResults);
+    for (KeyResult result : stops) {
+      EnigmaMachine machine = new EnigmaMachine(
+          keySpace.getConfig(result.getKey(), innerPermutations)
+              .setPlugboard(result.getPlugboard()));
+      finalResults.maybeAdd(materialize(machine, result.getScore(), message));
+    }
+    return finalResults;
+  }
+
+  private EnigmaResult materialize(EnigmaMachine machine, double score, char[] message) {
+    return materialize(machine, score, message, crib);
+  }
+
+  private EnigmaResult materialize(EnigmaMachine machine, double score, char[] message,
+      String crib) {
+    StringBuilder decoded = new StringBuilder(message.length);
+    for (char c : message) {
+      decoded.append(machine.step(c));
+    }
+    String decodedMessage = decoded.toString();
+    if (crib != null && decodedMessage.contains(crib)) {
+      System.out.println("=== Found crib in the message: " + decodedMessage + " ===");
     }
 
-    return permutations;
+    return new EnigmaResult(decodedMessage, score, machine.toString());
   }
 
   public static void main(String[] args) throws Exception {
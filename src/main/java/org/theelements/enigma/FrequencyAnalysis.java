@@ -19,7 +19,6 @@ package org.theelements.enigma;
 import java.util.Map;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
 
 public class FrequencyAnalysis {
   private static final ImmutableMap<Character, Double> ENGLISH_EXPECTED_FREQUENCY =
@@ -30,36 +29,69 @@ public class FrequencyAnalysis {
       .put('S', 6.327).put('T', 9.056).put('U', 2.758).put('V', 0.978).put('W', 2.360)
       .put('X', 0.150).put('Y', 1.974).put('Z', 0.074).build();
 
-  private Map<Character, Long> analysis = Maps.newHashMap();
-  private long totalCount = 0;
-
-  public FrequencyAnalysis() {
-    for (char c : ENGLISH_EXPECTED_FREQUENCY.keySet()) {
-      analysis.put(c, 0L);
+  // ENGLISH_EXPECTED_FREQUENCY indexed by letter - 'A'.
+  private static final double[] EXPECTED_FREQUENCY = new double[26];
+  static {
+    for (Map.Entry<Character, Double> entry : ENGLISH_EXPECTED_FREQUENCY.entrySet()) {
+      EXPECTED_FREQUENCY[entry.getKey() - 'A'] = entry.getValue();
     }
   }
 
+  private final int[] analysis = new int[26];
+  private int totalCount = 0;
+
   public void add(char c) {
-    analysis.put(c, analysis.get(c) + 1);
+    analysis[c - 'A']++;
     totalCount++;
   }
 
   public double calculateDifference() {
+    return calculateDifference(analysis, totalCount);
+  }
+
+  /**
+   * Calculates the same score as calculateDifference() directly from letter counts, indexed by
+   * letter - 'A'. This doesn't allocate, so it can be used on the hot path of a search.
+   */
+  public static double calculateDifference(int[] counts, int totalCount) {
     double totalDifference = 0.0;
-    for (char c : ENGLISH_EXPECTED_FREQUENCY.keySet()) {
-      long count = analysis.get(c);
+    for (int i = 0; i < 26; i++) {
+      int count = counts[i];
       if (count == 0) {
         continue;
       }
 
       double actual = ((double) count / totalCount) * 100;
-      double expected = ENGLISH_EXPECTED_FREQUENCY.get(c);
-      totalDifference += Math.abs(actual - expected);
+      totalDifference += Math.abs(actual - EXPECTED_FREQUENCY[i]);
     }
 
     return totalDifference;
   }
 
+  /**
+   * Builds a table for tracking a lower bound on calculateDifference() while a message of
+   * totalCount letters is only partly counted. Entry {@code letter * totalCount + count} is how
+   * much the bound grows when the count of that letter goes from count to count + 1.
+   *
+   * <p>Counts only grow as more of the message is counted, so a letter that is already more
+   * common than expected can only get further away. Summing the increments for every letter
+   * counted so far gives how far over-represented letters are past their expected frequency,
+   * and the final difference can never be smaller than that.
+   */
+  public static double[] lowerBoundIncrements(int totalCount) {
+    double[] increments = new double[26 * totalCount];
+    for (int i = 0; i < 26; i++) {
+      double previous = 0.0;
+      for (int count = 0; count < totalCount; count++) {
+        double excess =
+            Math.max(0.0, ((double) (count + 1) / totalCount) * 100 - EXPECTED_FREQUENCY[i]);
+        increments[i * totalCount + count] = excess - previous;
+        previous = excess;
+      }
+    }
+    return increments;
+  }
+
   @Override
   public String toString() {
     return String.format("Total difference: %.3f", calculateDifference());
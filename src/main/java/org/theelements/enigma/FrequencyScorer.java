@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Scores messages by how far their letter frequencies are from English, see FrequencyAnalysis.
+ */
+public class FrequencyScorer implements Scorer {
+
+  @Override
+  public double score(int[] text, int[] counts, int length) {
+    return FrequencyAnalysis.calculateDifference(counts, length);
+  }
+
+  @Override
+  public double[] lowerBoundIncrements(int length) {
+    return FrequencyAnalysis.lowerBoundIncrements(length);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Scores messages by their index of coincidence, the chance that two letters picked from the
+ * message are the same. English text is around 0.067 and random text around 0.038. The score is
+ * the negated index so that smaller is better.
+ */
+public class IndexOfCoincidenceScorer implements Scorer {
+
+  @Override
+  public double score(int[] text, int[] counts, int length) {
+    if (length < 2) {
+      return 0.0;
+    }
+
+    long total = 0;
+    for (int i = 0; i < 26; i++) {
+      total += (long) counts[i] * (counts[i] - 1);
+    }
+    return -((double) total / ((long) length * (length - 1)));
+  }
+
+  @Override
+  public double[] lowerBoundIncrements(int length) {
+    return null;
+  }
+}
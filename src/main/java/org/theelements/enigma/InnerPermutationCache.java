@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Holds the composed permutation of the middle rotor, left rotor, reflector, and back out through
+ * the left and middle rotors. The left and middle rotors move rarely, so for most key presses the
+ * only thing that changes is the right rotor.
+ *
+ * <p>Once built the cache is never modified, so a single instance can be shared by all threads.
+ */
+public class InnerPermutationCache {
+
+  private final ImmutableMap<List<Rotor>, byte[]> tables;
+
+  private InnerPermutationCache(ImmutableMap<List<Rotor>, byte[]> tables) {
+    this.tables = tables;
+  }
+
+  /**
+   * Builds the permutations for every ordered pair of distinct rotors combined with every
+   * reflector.
+   */
+  public static InnerPermutationCache build(List<Rotor> rotors, List<Rotor> reflectors) {
+    ImmutableMap.Builder<List<Rotor>, byte[]> builder = ImmutableMap.builder();
+    for (Rotor left : rotors) {
+      for (Rotor middle : rotors) {
+        if (left == middle) {
+          continue;
+        }
+        for (Rotor reflector : reflectors) {
+          builder.put(ImmutableList.of(left, middle, reflector),
+              buildTable(left, middle, reflector));
+        }
+      }
+    }
+    return new InnerPermutationCache(builder.build());
+  }
+
+  /**
+   * Returns the composed table for the given rotors, or null if they are not in the cache. The
+   * table is indexed by {@code (leftPosition * 26 + middlePosition) * 26 + inputIndex} and must
+   * not be modified.
+   */
+  byte[] get(Rotor left, Rotor middle, Rotor reflector) {
+    return tables.get(ImmutableList.of(left, middle, reflector));
+  }
+
+  private static byte[] buildTable(Rotor left, Rotor middle, Rotor reflector) {
+    int[][] leftForward = left.getForwardTables();
+    int[][] leftReverse = left.getReverseTables();
+    int[][] middleForward = middle.getForwardTables();
+    int[][] middleReverse = middle.getReverseTables();
+    int[] reflectorTable = reflector.getForwardTables()[0];
+
+    byte[] table = new byte[26 * 26 * 26];
+    for (int leftPosition = 0; leftPosition < 26; leftPosition++) {
+      for (int middlePosition = 0; middlePosition < 26; middlePosition++) {
+        int base = (leftPosition * 26 + middlePosition) * 26;
+        for (int input = 0; input < 26; input++) {
+          int value = middleForward[middlePosition][input];
+          value = leftForward[leftPosition][value];
+          value = reflectorTable[value];
+          value = leftReverse[leftPosition][value];
+          value = middleReverse[middlePosition][value];
+          table[base + input] = (byte) value;
+        }
+      }
+    }
+    return table;
+  }
+}
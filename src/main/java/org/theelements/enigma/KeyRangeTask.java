@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches a range of key indexes on a ForkJoinPool, see KeySpace. The range is split in half
+ * recursively while it is larger than maxRange or there are threads waiting for work, so idle
+ * threads steal work from busy ones instead of waiting for a batch to finish. Each range that
+ * isn't split is handed to a Leaf on the current thread.
+ */
+final class KeyRangeTask extends RecursiveAction {
+  /** Ranges smaller than this are never split, it is one left rotor position of one slice. */
+  static final int MIN_RANGE = 26 * 26;
+  // Split while a worker has fewer queued tasks than this.
+  private static final int SURPLUS_TASKS = 3;
+
+  /** Searches one range of keys, called on the pool's threads. */
+  interface Leaf {
+    void search(long start, long end);
+  }
+
+  private final long start;
+  private final long end;
+  private final long maxRange;
+  private final Leaf leaf;
+
+  KeyRangeTask(long start, long end, long maxRange, Leaf leaf) {
+    this.start = start;
+    this.end = end;
+    this.maxRange = maxRange;
+    this.leaf = leaf;
+  }
+
+  /** A maxRange that gives each of pool's threads about eight ranges of size keys. */
+  static long maxRange(ForkJoinPool pool, long size) {
+    return Math.max(MIN_RANGE, size / (pool.getParallelism() * 8L));
+  }
+
+  /** Searches [start, end) with leaf on pool and waits for it to finish. */
+  static void search(ForkJoinPool pool, long start, long end, long maxRange, Leaf leaf) {
+    pool.invoke(new KeyRangeTask(start, end, maxRange, leaf));
+  }
+
+  @Override
+  protected void compute() {
+    long size = end - start;
+    if (size > MIN_RANGE && (size > maxRange || getSurplusQueuedTaskCount() < SURPLUS_TASKS)) {
+      long middle = start + size / 2;
+      KeyRangeTask left = new KeyRangeTask(start, middle, maxRange, leaf);
+      left.fork();
+      new KeyRangeTask(middle, end, maxRange, leaf).compute();
+      left.join();
+    } else {
+      leaf.search(start, end);
+    }
+  }
+}
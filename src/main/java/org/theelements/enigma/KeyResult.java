@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * A packed EnigmaKey together with the plugboard found for it and its score. Used by the
+ * searches that find plugboards, since a plugboard doesn't fit in the packed key.
+ */
+class KeyResult implements Comparable<KeyResult> {
+  private final long key;
+  private final Plugboard plugboard;
+  private final double score;
+
+  KeyResult(long key, Plugboard plugboard, double score) {
+    this.key = key;
+    this.plugboard = plugboard;
+    this.score = score;
+  }
+
+  long getKey() {
+    return key;
+  }
+
+  Plugboard getPlugboard() {
+    return plugboard;
+  }
+
+  double getScore() {
+    return score;
+  }
+
+  @Override
+  public int compareTo(KeyResult other) {
+    return Double.compare(score, other.score);
+  }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+
+/**
+ * Searches a KeySpace on a ForkJoinPool. The whole space is split recursively into ranges of key
+ * indexes with a KeyRangeTask, and each range is processed in a tight loop by the current
+ * thread's CandidateEvaluator, collecting into that thread's heap.
+ */
+class KeySearch {
+  private final KeySpace keySpace;
+  private final InnerPermutationCache innerPermutations;
+  private final ThreadLocal<CandidateEvaluator> evaluators;
+  // Set up by the first run() with the VECTOR engine, null otherwise.
+  private ThreadLocal<LaneDecoder> laneDecoders;
+  private final int[] messageIndexes;
+  private final int[] cribIndexes;
+  private final Scorer scorer;
+  private final boolean cribFirst;
+
+  private final ConcurrentTopK best;
+  private final ThreadLocal<BoundedScoreHeap> localHeaps;
+
+  private PermutationAtlas atlas;
+  private DecodeEngine engine = DecodeEngine.STEP;
+
+  private SearchStats stats;
+  private SearchCheckpoint checkpoint;
+  private StopCriterion stopCriterion;
+  private SlicePrioritizer prioritizer;
+  // Set once the search should stop, every task then returns as soon as it sees it.
+  private volatile String stopReason;
+
+  KeySearch(KeySpace keySpace, InnerPermutationCache innerPermutations, char[] message,
+      String crib, Scorer scorer, int numResults) {
+    this(keySpace, innerPermutations, message, crib, scorer, null, numResults);
+  }
+
+  /**
+   * @param cribOffsets if not null, only keys that put the crib at one of these offsets are
+   *     decoded in full, see CandidateEvaluator.setCribOffsets()
+   */
+  KeySearch(KeySpace keySpace, InnerPermutationCache innerPermutations, final char[] message,
+      final String crib, final Scorer scorer, final int[] cribOffsets, int numResults) {
+    this.keySpace = keySpace;
+    this.innerPermutations = innerPermutations;
+    this.messageIndexes = CandidateEvaluator.toIndexes(message);
+    this.cribIndexes = crib == null ? null : CandidateEvaluator.toIndexes(crib.toCharArray());
+    this.scorer = scorer;
+    this.cribFirst = cribOffsets != null;
+    this.stats = new SearchStats(keySpace.size());
+    this.best = new ConcurrentTopK(numResults);
+    this.localHeaps = new ThreadLocal<BoundedScoreHeap>() {
+      @Override
+      protected BoundedScoreHeap initialValue() {
+        return best.newLocalHeap();
+      }
+    };
+    // Each worker thread decodes into its own buffers, so evaluating a key doesn't allocate.
+    this.evaluators = new ThreadLocal<CandidateEvaluator>() {
+      @Override
+      protected CandidateEvaluator initialValue() {
+        CandidateEvaluator evaluator = new CandidateEvaluator(message, crib, scorer);
+        if (cribOffsets != null) {
+          evaluator.setCribOffsets(cribOffsets);
+        }
+        evaluator.setAtlas(atlas);
+        evaluator.setEngine(engine);
+        return evaluator;
+      }
+    };
+  }
+
+  /**
+   * Decodes with the permutations in atlas instead of the rotor tables, must be called before
+   * run().
+   */
+  void setAtlas(PermutationAtlas atlas) {
+    this.atlas = atlas;
+  }
+
+  /**
+   * Counts into stats instead of a private SearchStats, so the search can be watched while it
+   * runs. Must be called before run().
+   */
+  void setStats(SearchStats stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Records the progress in checkpoint so it can be saved with saveCheckpoint(), and skips the
+   * keys and restores the results it already has. Must be called before run().
+   */
+  void setCheckpoint(SearchCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Stops the search as soon as the best keys found so far meet criterion, leaving the rest of
+   * the key space unsearched. The threads check it after every slice they search, and the keys
+   * already being searched are abandoned. Must be called before run().
+   */
+  void setStopCriterion(StopCriterion criterion) {
+    Preconditions.checkArgument(!criterion.needsCrib() || cribIndexes != null,
+        "Stopping at a crib match needs a crib.");
+    this.stopCriterion = criterion.isSet() ? criterion : null;
+  }
+
+  /**
+   * Searches the slices in the order chosen by prioritizer, a few keys at a time, instead of
+   * splitting the key space evenly between the threads. The best keys so far then come from the
+   * most likely slices whenever the search is stopped. Must be called before run().
+   */
+  void setPrioritizer(SlicePrioritizer prioritizer) {
+    this.prioritizer = prioritizer;
+  }
+
+  /**
+   * Skips the keys that score worse than bound, for example the worst of the best keys another
+   * search of the same message already has. Can be called between runs.
+   */
+  void lowerThreshold(double bound) {
+    best.lowerThreshold(bound);
+  }
+
+  /** Chooses how messages are decoded, must be called before run(). */
+  void setEngine(DecodeEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Searches the whole key space and returns the best keys found, sorted from best to worst.
+   */
+  ScoredKeys run(ForkJoinPool pool) {
+    return run(pool, 0, keySpace.size());
+  }
+
+  /**
+   * Searches only the keys with indexes in [start, end), see KeySpace, and returns the best keys
+   * found in them.
+   */
+  ScoredKeys run(ForkJoinPool pool, long start, long end) {
+    // Crib first decoding checks one key at a time, so it stays with the evaluators.
+    if (engine == DecodeEngine.VECTOR && !cribFirst && laneDecoders == null) {
+      laneDecoders = new ThreadLocal<LaneDecoder>() {
+        @Override
+        protected LaneDecoder initialValue() {
+          return LaneDecoder.create(messageIndexes, cribIndexes, scorer);
+        }
+      };
+    }
+    long maxRange = KeyRangeTask.maxRange(pool, end - start);
+    if (checkpoint != null) {
+      // Smaller ranges lose less work when the search is stopped between checkpoints.
+      maxRange = Math.min(maxRange, KeySpace.POSITIONS);
+    }
+    if (checkpoint != null) {
+      checkpoint.restore(best);
+      stats.addResumed(checkpoint.getSearchedCount());
+    }
+    stats.start();
+    try {
+      if (prioritizer == null) {
+        KeyRangeTask.search(pool, start, end, maxRange, new KeyRangeTask.Leaf() {
+          @Override
+          public void search(long start, long end) {
+            if (!isStopped()) {
+              searchLeaf(start, end);
+            }
+          }
+        });
+      } else {
+        pool.invoke(new OrderedTask(prioritizer.prioritize(keySpace), start, end,
+            new AtomicLong(), pool.getParallelism()));
+      }
+    } finally {
+      stats.finish();
+    }
+    if (stopReason != null) {
+      stats.setStoppedBy(stopReason);
+    }
+    return best.getSorted();
+  }
+
+  /**
+   * Saves the ranges searched so far and the best keys in them, can be called from any thread
+   * while the search runs.
+   */
+  void saveCheckpoint() throws IOException {
+    checkpoint.save(best);
+  }
+
+  SearchStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Stops the search as soon as possible, for example when it runs out of time, and makes run()
+   * return the best keys found so far. Can be called from any thread, only the first reason is
+   * kept.
+   */
+  synchronized void stop(String reason) {
+    if (stopReason == null) {
+      stopReason = reason;
+    }
+  }
+
+  /** Whether the search was stopped before every key was searched, see stop(). */
+  boolean isStopped() {
+    return stopReason != null;
+  }
+
+  /**
+   * Returns the best keys found so far, sorted from best to worst. Can be called from any thread
+   * while the search runs, but keys are only seen once the range they are in is done.
+   */
+  ScoredKeys getBestSoFar() {
+    return best.getSorted();
+  }
+
+  long getCandidatesEvaluated() {
+    return stats.getKeysEvaluated();
+  }
+
+  long getCandidatesPruned() {
+    return stats.getKeysPruned();
+  }
+
+  long getCandidatesRejectedByCrib() {
+    return stats.getKeysRejectedByCrib();
+  }
+
+  /**
+   * Searches the slices in the order they are given, each thread taking the next MIN_RANGE keys
+   * in that order until there are none left. One task is forked for each thread.
+   */
+  private class OrderedTask extends RecursiveAction {
+    private final int[] slices;
+    private final long start;
+    private final long end;
+    private final AtomicLong next;
+    private final int copies;
+
+    OrderedTask(int[] slices, long start, long end, AtomicLong next, int copies) {
+      this.slices = slices;
+      this.start = start;
+      this.end = end;
+      this.next = next;
+      this.copies = copies;
+    }
+
+    @Override
+    protected void compute() {
+      OrderedTask others = null;
+      if (copies > 1) {
+        others = new OrderedTask(slices, start, end, next, copies - 1);
+        others.fork();
+      }
+      long total = (long) slices.length * KeySpace.POSITIONS;
+      long rank = next.getAndAdd(KeyRangeTask.MIN_RANGE);
+      while (rank < total && !isStopped()) {
+        // MIN_RANGE divides POSITIONS, so the keys never cross into another slice.
+        long first = (long) slices[(int) (rank / KeySpace.POSITIONS)] * KeySpace.POSITIONS
+            + rank % KeySpace.POSITIONS;
+        long from = Math.max(start, first);
+        long to = Math.min(end, first + KeyRangeTask.MIN_RANGE);
+        if (from < to) {
+          searchLeaf(from, to);
+        }
+        rank = next.getAndAdd(KeyRangeTask.MIN_RANGE);
+      }
+      if (others != null) {
+        others.join();
+      }
+    }
+  }
+
+  private void searchLeaf(long start, long end) {
+    if (checkpoint == null) {
+      searchRange(start, end);
+    } else {
+      for (Range<Long> range : checkpoint.remaining(start, end)) {
+        searchRange(range.lowerEndpoint(), range.upperEndpoint());
+      }
+    }
+  }
+
+  private void searchRange(long start, long end) {
+    CandidateEvaluator evaluator = evaluators.get();
+    BoundedScoreHeap local = localHeaps.get();
+    LaneDecoder lanes = null;
+    int laneCount = 0;
+    double[] scores = null;
+
+    long index = start;
+    while (index < end && !isStopped()) {
+      // The counts are published after each slice, so progress can be shown while it runs.
+      long sliceStart = System.nanoTime();
+      SliceSearchEvent event = new SliceSearchEvent();
+      event.begin();
+      evaluator.resetCounts();
+      long laneEvaluated = 0;
+      int slice = (int) (index / KeySpace.POSITIONS);
+      int rotorOrder = keySpace.getSliceRotorOrder(slice);
+      int reflector = keySpace.getSliceReflector(slice);
+      Rotor[] rotors = keySpace.getRotorOrder(rotorOrder);
+      evaluator.setRotors(rotors[0], rotors[1], rotors[2], keySpace.getReflector(reflector),
+          innerPermutations);
+      if (laneDecoders != null) {
+        byte[] innerTable = innerPermutations == null
+            ? null : innerPermutations.get(rotors[0], rotors[1], keySpace.getReflector(reflector));
+        lanes = innerTable == null ? null : laneDecoders.get();
+        if (lanes != null) {
+          lanes.setRotors(rotors[1], rotors[2], innerTable);
+          laneCount = lanes.getLanes();
+          if (scores == null) {
+            scores = new double[laneCount];
+          }
+        }
+      }
+
+      long sliceEnd = Math.min(end, (slice + 1L) * KeySpace.POSITIONS);
+      int position = (int) (index % KeySpace.POSITIONS);
+      int position1 = position / 676;
+      int position2 = position / 26 % 26;
+      int position3 = position % 26;
+      event.firstPosition = position;
+      for (; index < sliceEnd && !isStopped(); index++) {
+        if (lanes != null && sliceEnd - index >= laneCount) {
+          int first = (position1 * 26 + position2) * 26 + position3;
+          lanes.evaluate(first, scores);
+          for (int lane = 0; lane < laneCount; lane++) {
+            if (scores[lane] <= Math.min(local.threshold(), best.getThreshold())) {
+              int key = first + lane;
+              local.offer(scores[lane], EnigmaKey.pack(rotorOrder, reflector, key / 676,
+                  key / 26 % 26, key % 26));
+            }
+          }
+          laneEvaluated += laneCount;
+          index += laneCount - 1;
+          int next = first + laneCount;
+          position1 = next / 676;
+          position2 = next / 26 % 26;
+          position3 = next % 26;
+          continue;
+        }
+
+        double threshold = Math.min(local.threshold(), best.getThreshold());
+        double score = evaluator.evaluate(position1, position2, position3, threshold);
+        if (score <= threshold) {
+          local.offer(score, EnigmaKey.pack(rotorOrder, reflector, position1, position2,
+              position3));
+        }
+
+        if (++position3 == 26) {
+          position3 = 0;
+          if (++position2 == 26) {
+            position2 = 0;
+            position1++;
+          }
+        }
+      }
+
+      long evaluated = evaluator.getEvaluated() + laneEvaluated;
+      long letters = evaluator.getLettersDecoded() + laneEvaluated * messageIndexes.length;
+      stats.add(evaluated, evaluator.getPruned(), evaluator.getCribRejected(), letters,
+          System.nanoTime() - sliceStart);
+      event.end();
+      if (event.shouldCommit()) {
+        event.rotorOrder = Joiner.on(" / ").join(rotors);
+        event.reflector = keySpace.getReflector(reflector).toString();
+        event.keysEvaluated = evaluated;
+        event.keysPruned = evaluator.getPruned();
+        event.keysRejectedByCrib = evaluator.getCribRejected();
+        event.charactersDecoded = letters;
+        event.commit();
+      }
+      if (stopCriterion != null && checkpoint == null) {
+        best.merge(local);
+        checkStop(evaluator);
+      }
+    }
+
+    if (checkpoint == null) {
+      best.merge(local);
+    } else {
+      // Only the keys up to index were searched if the search was stopped.
+      checkpoint.complete(start, index, local, best);
+      if (stopCriterion != null) {
+        checkStop(evaluator);
+      }
+    }
+  }
+
+  // Stops the search if the best keys so far meet the stop criterion. The crib check decodes the
+  // best key with evaluator, so this must not be called in the middle of a slice.
+  private void checkStop(CandidateEvaluator evaluator) {
+    ScoredKeys sorted = best.getSorted();
+    if (sorted.size() == 0) {
+      return;
+    }
+    boolean hasCrib = false;
+    if (stopCriterion.needsCrib()) {
+      long key = sorted.getKey(0);
+      Rotor[] rotors = keySpace.getRotorOrder(EnigmaKey.rotorOrder(key));
+      evaluator.setRotors(rotors[0], rotors[1], rotors[2],
+          keySpace.getReflector(EnigmaKey.reflector(key)), innerPermutations);
+      evaluator.evaluate(EnigmaKey.position1(key), EnigmaKey.position2(key),
+          EnigmaKey.position3(key));
+      hasCrib = evaluator.foundCrib();
+    }
+    if (stopCriterion.isMet(sorted, hasCrib)) {
+      stop(stopCriterion.toString());
+    }
+  }
+}
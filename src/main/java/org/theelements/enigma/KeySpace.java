@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.List;
+
+import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The keys a search tries: every ordering of three distinct rotors, combined with every reflector
+ * and every starting position. Each (rotor order, reflector) pair is a slice of the key space.
+ * Keys are numbered from 0 to size() so the space can be split into ranges, index
+ * {@code slice * POSITIONS + position} where slice is {@code rotorOrder * reflectorCount +
+ * reflector} and position is the three starting positions read as a base 26 number.
+ */
+final class KeySpace {
+  static final int POSITIONS = 26 * 26 * 26;
+
+  private final List<Rotor[]> rotorOrders;
+  private final List<Rotor> reflectors;
+
+  KeySpace(List<Rotor> rotors, List<Rotor> reflectors) {
+    this.rotorOrders = permutations(rotors);
+    this.reflectors = Lists.newArrayList(reflectors);
+  }
+
+  int getRotorOrderCount() {
+    return rotorOrders.size();
+  }
+
+  int getReflectorCount() {
+    return reflectors.size();
+  }
+
+  int getSliceCount() {
+    return rotorOrders.size() * reflectors.size();
+  }
+
+  long size() {
+    return (long) getSliceCount() * POSITIONS;
+  }
+
+  /** Returns the rotors for the given order, left to right. The array must not be modified. */
+  Rotor[] getRotorOrder(int rotorOrder) {
+    return rotorOrders.get(rotorOrder);
+  }
+
+  Rotor getReflector(int reflector) {
+    return reflectors.get(reflector);
+  }
+
+  int getSliceRotorOrder(int slice) {
+    return slice / reflectors.size();
+  }
+
+  int getSliceReflector(int slice) {
+    return slice % reflectors.size();
+  }
+
+  /** Returns the packed EnigmaKey for the key with the given index. */
+  long getKey(long index) {
+    int slice = (int) (index / POSITIONS);
+    int position = (int) (index % POSITIONS);
+    return EnigmaKey.pack(getSliceRotorOrder(slice), getSliceReflector(slice), position / 676,
+        position / 26 % 26, position % 26);
+  }
+
+  /**
+   * Returns the index of a packed EnigmaKey with the rings at A, the inverse of getKey(), or -1
+   * if the key isn't in this key space.
+   */
+  long getIndex(long key) {
+    int rotorOrder = EnigmaKey.rotorOrder(key);
+    int reflector = EnigmaKey.reflector(key);
+    int position1 = EnigmaKey.position1(key);
+    int position2 = EnigmaKey.position2(key);
+    int position3 = EnigmaKey.position3(key);
+    if (key < 0 || key > 0xFFFFFFFFL || rotorOrder >= rotorOrders.size()
+        || reflector >= reflectors.size() || position1 >= 26 || position2 >= 26
+        || position3 >= 26) {
+      return -1;
+    }
+    return (long) (rotorOrder * reflectors.size() + reflector) * POSITIONS
+        + (position1 * 26 + position2) * 26 + position3;
+  }
+
+  EnigmaMachineConfig getConfig(long key, InnerPermutationCache innerPermutations) {
+    Rotor[] rotors = getRotorOrder(EnigmaKey.rotorOrder(key));
+    return new EnigmaMachineConfig((char) ('A' + EnigmaKey.position1(key)),
+        (char) ('A' + EnigmaKey.position2(key)), (char) ('A' + EnigmaKey.position3(key)),
+        rotors[0], rotors[1], rotors[2], getReflector(EnigmaKey.reflector(key)),
+        innerPermutations)
+        .setRings('A', (char) ('A' + EnigmaKey.ring2(key)), (char) ('A' + EnigmaKey.ring3(key)));
+  }
+
+  private static List<Rotor[]> permutations(List<Rotor> rotors) {
+    List<Rotor[]> permutations = Lists.newArrayList();
+    for (Rotor o1 : rotors) {
+      for (Rotor o2 : rotors) {
+        for (Rotor o3 : rotors) {
+          if (o1.equals(o2) || o1.equals(o3) || o2.equals(o3)) {
+            continue;
+          }
+          permutations.add(new Rotor[] {o1, o2, o3});
+        }
+      }
+    }
+    return permutations;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Decodes and scores a message for several start positions with the same rotors at once, one
+ * key per lane, for the VECTOR engine. The message is kept as bytes 0-25 and each key press is
+ * read from the StateSequence of the middle and right rotors, so the rings must be at A. The
+ * scores are exactly those of CandidateEvaluator.evaluate() without a threshold.
+ *
+ * <p>create() returns the Vector API decoder in src/vector/java when it was built and the JVM
+ * was started with {@code --add-modules jdk.incubator.vector}, and a scalar decoder otherwise.
+ * A decoder owns its buffers, so it must only be used by a single thread.
+ */
+abstract class LaneDecoder {
+  private static final String VECTOR_DECODER = "org.theelements.enigma.VectorLaneDecoder";
+
+  final byte[] message;
+  private final int[] crib;
+  private final double cribBonus;
+  private final Scorer scorer;
+
+  LaneDecoder(int[] message, int[] crib, Scorer scorer) {
+    this.message = new byte[message.length];
+    for (int i = 0; i < message.length; i++) {
+      this.message[i] = (byte) message[i];
+    }
+    this.crib = crib;
+    this.cribBonus = crib == null ? 0.0 : crib.length * 100;
+    this.scorer = scorer;
+  }
+
+  /** Returns the Vector API decoder if it can be used, otherwise a ScalarLaneDecoder. */
+  static LaneDecoder create(int[] message, int[] crib, Scorer scorer) {
+    try {
+      LaneDecoder decoder = (LaneDecoder) Class.forName(VECTOR_DECODER)
+          .getDeclaredConstructor(int[].class, int[].class, Scorer.class)
+          .newInstance(message, crib, scorer);
+      if (decoder.getLanes() > 1) {
+        return decoder;
+      }
+    } catch (ReflectiveOperationException e) {
+      // Not built, see build.gradle.
+    } catch (LinkageError e) {
+      // Built, but the module wasn't added.
+    }
+    return new ScalarLaneDecoder(message, crib, scorer);
+  }
+
+  /** Whether create() returns the Vector API decoder. */
+  static boolean isVectorAvailable() {
+    return !(create(new int[0], null, new FrequencyScorer()) instanceof ScalarLaneDecoder);
+  }
+
+  /** The number of keys decoded together. */
+  abstract int getLanes();
+
+  /**
+   * Changes the rotors, innerTable is the InnerPermutationCache table for the left and middle
+   * rotors and the reflector.
+   */
+  abstract void setRotors(Rotor rotor2, Rotor rotor3, byte[] innerTable);
+
+  /**
+   * Decodes and scores the message for getLanes() keys, starting at the packed positions
+   * {@code (left * 26 + middle) * 26 + right} first, first + 1 and so on, which must all be
+   * below KeySpace.POSITIONS. The scores are written to scores.
+   */
+  abstract void evaluate(int first, double[] scores);
+
+  /** Scores one key's decoded letters, counts holds the number of times each one appears. */
+  final double score(int[] text, int[] counts) {
+    double score = scorer.score(text, counts, text.length);
+    if (crib != null && CandidateEvaluator.contains(text, text.length, crib)) {
+      score -= cribBonus;
+    }
+    return score;
+  }
+}
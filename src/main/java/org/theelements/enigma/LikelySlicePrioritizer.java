@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Searches the slices with the most used reflectors and wheel orders first. B was the standard
+ * reflector for most of the war, C came later and A was retired in 1937. Wheel orders that key
+ * lists or earlier breaks show to be common can be given, they are searched before the others
+ * with the same reflector. Everything else keeps its KeySpace order.
+ */
+class LikelySlicePrioritizer implements SlicePrioritizer {
+  static final List<Rotor> REFLECTORS =
+      ImmutableList.of(Rotor.REFLECTOR_B, Rotor.REFLECTOR_C, Rotor.REFLECTOR_A);
+
+  private final List<Rotor> reflectors;
+  private final List<List<Rotor>> wheelOrders = Lists.newArrayList();
+
+  /** Prefers the reflectors in REFLECTORS and no particular wheel orders. */
+  LikelySlicePrioritizer() {
+    this(REFLECTORS, ImmutableList.<List<Rotor>>of());
+  }
+
+  /**
+   * @param reflectors the reflectors to search first, most likely first
+   * @param wheelOrders the wheel orders to search first, each left to right
+   */
+  LikelySlicePrioritizer(List<Rotor> reflectors, List<List<Rotor>> wheelOrders) {
+    this.reflectors = ImmutableList.copyOf(reflectors);
+    for (List<Rotor> order : wheelOrders) {
+      this.wheelOrders.add(ImmutableList.copyOf(order));
+    }
+  }
+
+  @Override
+  public int[] prioritize(KeySpace keySpace) {
+    int slices = keySpace.getSliceCount();
+    final int[] ranks = new int[slices];
+    for (int slice = 0; slice < slices; slice++) {
+      int reflectorRank =
+          rank(reflectors, keySpace.getReflector(keySpace.getSliceReflector(slice)));
+      int orderRank = rank(wheelOrders,
+          Arrays.asList(keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slice))));
+      ranks[slice] = reflectorRank * (wheelOrders.size() + 1) + orderRank;
+    }
+    Integer[] order = new Integer[slices];
+    for (int slice = 0; slice < slices; slice++) {
+      order[slice] = slice;
+    }
+    // The sort is stable, so slices with the same rank stay in order.
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(ranks[a], ranks[b]);
+      }
+    });
+    int[] result = new int[slices];
+    for (int i = 0; i < slices; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+
+  // The index of value in preferred, or after all of them if it isn't there.
+  private static <T> int rank(List<T> preferred, T value) {
+    int index = preferred.indexOf(value);
+    return index < 0 ? preferred.size() : index;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+
+/**
+ * A bombe menu: the graph of letters linked by a crib placed against the ciphertext. Crib
+ * letter i and the ciphertext letter under it are joined by an edge for key press offset + i + 1.
+ * Whatever a letter is plugged to, the scrambler at that key press turns it into whatever the
+ * other letter is plugged to, which is what lets the bombe test plugboard guesses.
+ *
+ * <p>All letters are indexes in the range [0, 26).
+ */
+final class Menu {
+  private final int offset;
+  private final int length;
+  // For each letter, the letters it is joined to and the crib position of each edge.
+  private final int[][] neighbours;
+  private final int[][] positions;
+  private final int testLetter;
+  private final int loops;
+
+  private Menu(int[] message, int[] crib, int offset) {
+    this.offset = offset;
+    this.length = crib.length;
+
+    int[] degree = new int[26];
+    for (int i = 0; i < crib.length; i++) {
+      degree[crib[i]]++;
+      degree[message[offset + i]]++;
+    }
+    neighbours = new int[26][];
+    positions = new int[26][];
+    for (int letter = 0; letter < 26; letter++) {
+      neighbours[letter] = new int[degree[letter]];
+      positions[letter] = new int[degree[letter]];
+    }
+    Arrays.fill(degree, 0);
+    for (int i = 0; i < crib.length; i++) {
+      addEdge(crib[i], message[offset + i], i, degree);
+      addEdge(message[offset + i], crib[i], i, degree);
+    }
+
+    int best = 0;
+    for (int letter = 1; letter < 26; letter++) {
+      if (neighbours[letter].length > neighbours[best].length) {
+        best = letter;
+      }
+    }
+    testLetter = best;
+    loops = countLoops();
+  }
+
+  /**
+   * Returns the offsets the crib could be at. Enigma never encrypts a letter to itself, so the
+   * crib can't be anywhere that one of its letters lines up with the same ciphertext letter.
+   */
+  static int[] validOffsets(int[] message, int[] crib) {
+    int[] offsets = new int[Math.max(0, message.length - crib.length + 1)];
+    int count = 0;
+    outer:
+    for (int offset = 0; offset + crib.length <= message.length; offset++) {
+      for (int i = 0; i < crib.length; i++) {
+        if (message[offset + i] == crib[i]) {
+          continue outer;
+        }
+      }
+      offsets[count++] = offset;
+    }
+    return Arrays.copyOf(offsets, count);
+  }
+
+  static Menu build(int[] message, int[] crib, int offset) {
+    return new Menu(message, crib, offset);
+  }
+
+  int getOffset() {
+    return offset;
+  }
+
+  /** The number of letters in the crib, which is also the number of edges. */
+  int getLength() {
+    return length;
+  }
+
+  /** The letter with the most edges, the bombe guesses its plugboard partner. */
+  int getTestLetter() {
+    return testLetter;
+  }
+
+  /** The letters joined to letter, the returned array must not be modified. */
+  int[] getNeighbours(int letter) {
+    return neighbours[letter];
+  }
+
+  /** The crib positions of the edges in getNeighbours(letter), must not be modified. */
+  int[] getPositions(int letter) {
+    return positions[letter];
+  }
+
+  /**
+   * The number of independent loops in the menu. Every loop is a check on a plugboard guess, so
+   * menus with more loops give far fewer false stops.
+   */
+  int getLoops() {
+    return loops;
+  }
+
+  private void addEdge(int from, int to, int position, int[] degree) {
+    neighbours[from][degree[from]] = to;
+    positions[from][degree[from]] = position;
+    degree[from]++;
+  }
+
+  // Edges - letters + connected components, counted with a union find.
+  private int countLoops() {
+    int[] parent = new int[26];
+    for (int i = 0; i < 26; i++) {
+      parent[i] = i;
+    }
+    int letters = 0;
+    int components = 0;
+    for (int letter = 0; letter < 26; letter++) {
+      if (neighbours[letter].length == 0) {
+        continue;
+      }
+      letters++;
+      components++;
+      for (int neighbour : neighbours[letter]) {
+        int a = find(parent, letter);
+        int b = find(parent, neighbour);
+        if (a != b && neighbour < letter) {
+          parent[a] = b;
+          components--;
+        }
+      }
+    }
+    return length - letters + components;
+  }
+
+  private static int find(int[] parent, int letter) {
+    while (parent[letter] != letter) {
+      letter = parent[letter];
+    }
+    return letter;
+  }
+}
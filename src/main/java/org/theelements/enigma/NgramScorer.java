@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Scores messages by the log probability of every n-gram in the message under an NgramTable.
+ * The score is the negated sum so that smaller is better.
+ */
+public class NgramScorer implements Scorer {
+  private final int n;
+  private final int highestPlace;
+  private final float[] logProbabilities;
+
+  public NgramScorer(NgramTable table) {
+    this.n = table.getLength();
+    this.logProbabilities = table.getLogProbabilities();
+
+    int place = 1;
+    for (int i = 1; i < n; i++) {
+      place *= 26;
+    }
+    this.highestPlace = place;
+  }
+
+  @Override
+  public double score(int[] text, int[] counts, int length) {
+    if (length < n) {
+      return 0.0;
+    }
+
+    // index always holds the previous n - 1 letters as a base 26 number.
+    int index = 0;
+    for (int i = 0; i < n - 1; i++) {
+      index = index * 26 + text[i];
+    }
+
+    double total = 0.0;
+    for (int i = n - 1; i < length; i++) {
+      index = index * 26 + text[i];
+      total += logProbabilities[index];
+      index -= text[i - n + 1] * highestPlace;
+    }
+    return -total;
+  }
+
+  @Override
+  public double[] lowerBoundIncrements(int length) {
+    return null;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Log10 probabilities of every n-gram of the letters A-Z, stored in a flat array indexed by the
+ * n-gram read as a base 26 number. For quadgrams that is 26^4 floats.
+ *
+ * <p>Tables are stored as gzipped binary resources: a header of three ints (magic, version and n)
+ * followed by the floats in big-endian order, so loading a table is a single bulk copy.
+ * NgramTableBuilder creates them from a text corpus.
+ */
+public class NgramTable {
+  private static final int MAGIC = 0x4E47524D;  // "NGRM"
+  private static final int VERSION = 1;
+  private static final String[] RESOURCE_NAMES = {null, null, "english_bigrams.bin.gz",
+    "english_trigrams.bin.gz", "english_quadgrams.bin.gz"};
+
+  private static final NgramTable[] loaded = new NgramTable[RESOURCE_NAMES.length];
+
+  private final int n;
+  private final float[] logProbabilities;
+
+  NgramTable(int n, float[] logProbabilities) {
+    Preconditions.checkArgument(logProbabilities.length == size(n));
+    this.n = n;
+    this.logProbabilities = logProbabilities;
+  }
+
+  /**
+   * Returns the English table for n-grams of length n, which must be 2, 3 or 4. Tables are loaded
+   * once and shared.
+   */
+  public static synchronized NgramTable load(int n) {
+    Preconditions.checkArgument(n >= 2 && n < RESOURCE_NAMES.length,
+        "No table for n-grams of length %s.", n);
+    if (loaded[n] == null) {
+      InputStream in = NgramTable.class.getResourceAsStream(RESOURCE_NAMES[n]);
+      if (in == null) {
+        throw new IllegalStateException("Missing resource " + RESOURCE_NAMES[n]);
+      }
+      try {
+        try {
+          loaded[n] = read(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read " + RESOURCE_NAMES[n], e);
+      }
+      Preconditions.checkState(loaded[n].n == n, "%s has the wrong n-gram length.",
+          RESOURCE_NAMES[n]);
+    }
+    return loaded[n];
+  }
+
+  /**
+   * Builds a table from n-gram counts, n-grams that were never seen get a floor probability of
+   * 0.01 / total.
+   */
+  public static NgramTable fromCounts(int n, long[] counts) {
+    Preconditions.checkArgument(counts.length == size(n));
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    Preconditions.checkArgument(total > 0, "No n-grams were counted.");
+
+    float[] logProbabilities = new float[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      double count = counts[i] == 0 ? 0.01 : counts[i];
+      logProbabilities[i] = (float) Math.log10(count / total);
+    }
+    return new NgramTable(n, logProbabilities);
+  }
+
+  public static NgramTable read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+    if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+      throw new IOException("Not an n-gram table.");
+    }
+    int n = data.readInt();
+    if (n < 1 || n > 4) {
+      throw new IOException("Unsupported n-gram length " + n);
+    }
+
+    byte[] bytes = new byte[size(n) * 4];
+    data.readFully(bytes);
+    float[] logProbabilities = new float[size(n)];
+    ByteBuffer.wrap(bytes).asFloatBuffer().get(logProbabilities);
+    return new NgramTable(n, logProbabilities);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    DataOutputStream data = new DataOutputStream(gzip);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(n);
+
+    ByteBuffer bytes = ByteBuffer.allocate(logProbabilities.length * 4);
+    bytes.asFloatBuffer().put(logProbabilities);
+    data.write(bytes.array());
+    data.flush();
+    gzip.finish();
+  }
+
+  /** The length of the n-grams in this table. */
+  public int getLength() {
+    return n;
+  }
+
+  /**
+   * The log10 probabilities indexed by n-gram, the returned array must not be modified.
+   */
+  float[] getLogProbabilities() {
+    return logProbabilities;
+  }
+
+  static int size(int n) {
+    int size = 1;
+    for (int i = 0; i < n; i++) {
+      size *= 26;
+    }
+    return size;
+  }
+}
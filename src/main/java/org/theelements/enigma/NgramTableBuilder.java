@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds an NgramTable resource from plain text files. Everything but the letters is dropped and
+ * n-grams are counted across word boundaries, since Enigma messages don't have spaces.
+ *
+ * <pre>
+ * java -cp build/libs/enigma-java-1.0.0-all.jar org.theelements.enigma.NgramTableBuilder \
+ *     -n 4 -output english_quadgrams.bin.gz corpus1.txt corpus2.txt
+ * </pre>
+ */
+public class NgramTableBuilder {
+
+  @Option(name="-n", usage="The length of the n-grams to count.")
+  private int n = 4;
+
+  @Option(name="-output", usage="The file to write the table to.")
+  private String output = null;
+
+  @Argument
+  private List<String> inputs = Lists.newArrayList();
+
+  public void doMain(String[] args) throws Exception {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    if (output == null || inputs.isEmpty()) {
+      throw new Exception("You must provide an output file and at least one input file.");
+    }
+    if (n < 1 || n > 4) {
+      throw new Exception("n must be between 1 and 4.");
+    }
+
+    long[] counts = new long[NgramTable.size(n)];
+    for (String input : inputs) {
+      Reader reader = new FileReader(new File(input));
+      try {
+        count(reader, counts);
+      } finally {
+        reader.close();
+      }
+    }
+
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+    try {
+      NgramTable.fromCounts(n, counts).write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void count(Reader reader, long[] counts) throws IOException {
+    int modulus = counts.length;
+    int index = 0;
+    int letters = 0;
+    char[] buffer = new char[8192];
+    int read;
+    while ((read = reader.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        char c = Character.toUpperCase(buffer[i]);
+        if (c < 'A' || c > 'Z') {
+          continue;
+        }
+        index = (index * 26 + (c - 'A')) % modulus;
+        letters++;
+        if (letters >= n) {
+          counts[index]++;
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new NgramTableBuilder().doMain(args);
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Every permutation the scrambler can make, in a file that is memory mapped. For each rotor
+ * order and reflector there is one 26 byte permutation (rotors and reflector, no plugboard) for
+ * every combination of rotor offsets, so with the atlas an EnigmaMachine decodes with a single
+ * lookup per letter from memory shared by all threads, and through the page cache by every
+ * process on the host. Five rotors and three reflectors make about 82 MB.
+ *
+ * <p>The header names the rotors and reflectors the atlas was built for, with a checksum of
+ * their wiring, so an atlas built before a change to Rotor is rejected instead of giving wrong
+ * answers.
+ */
+public class PermutationAtlas {
+  private static final int MAGIC = 0x454E4154;  // "ENAT"
+  private static final int VERSION = 1;
+
+  private final KeySpace keySpace;
+  private final ByteBuffer data;
+  private final Map<List<Rotor>, Integer> slices = Maps.newHashMap();
+
+  private PermutationAtlas(KeySpace keySpace, ByteBuffer data) {
+    this.keySpace = keySpace;
+    this.data = data;
+    for (int slice = 0; slice < keySpace.getSliceCount(); slice++) {
+      Rotor[] rotors = keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slice));
+      slices.put(ImmutableList.of(rotors[0], rotors[1], rotors[2],
+          keySpace.getReflector(keySpace.getSliceReflector(slice))), slice);
+    }
+  }
+
+  /**
+   * Writes the atlas for every order of the named rotors with each of the named reflectors.
+   */
+  public static void generate(File file, List<String> rotorNames, List<String> reflectorNames)
+      throws IOException {
+    KeySpace keySpace = new KeySpace(lookup(rotorNames), lookup(reflectorNames));
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      writeHeader(out, rotorNames, reflectorNames);
+
+      EnigmaMachine machine = new EnigmaMachine();
+      byte[] permutations = new byte[KeySpace.POSITIONS * 26];
+      for (int slice = 0; slice < keySpace.getSliceCount(); slice++) {
+        Rotor[] rotors = keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slice));
+        machine.setRotors(rotors[0], rotors[1], rotors[2],
+            keySpace.getReflector(keySpace.getSliceReflector(slice)), null);
+        machine.setRings(0, 0, 0);
+        for (int offsets = 0; offsets < KeySpace.POSITIONS; offsets++) {
+          machine.setPositions(offsets / 676, offsets / 26 % 26, offsets % 26);
+          for (int letter = 0; letter < 26; letter++) {
+            permutations[offsets * 26 + letter] = (byte) machine.scramble(letter);
+          }
+        }
+        out.write(permutations);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Maps an atlas written by generate(). Throws an IOException if the file isn't an atlas, is
+   * truncated, or was built from different rotor wiring.
+   */
+  public static PermutationAtlas open(File file) throws IOException {
+    List<String> rotorNames = Lists.newArrayList();
+    List<String> reflectorNames = Lists.newArrayList();
+    long checksum;
+    long headerLength;
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a permutation atlas: " + file);
+      }
+      checksum = in.readLong();
+      int rotorCount = in.readInt();
+      for (int i = 0; i < rotorCount; i++) {
+        rotorNames.add(in.readUTF());
+      }
+      int reflectorCount = in.readInt();
+      for (int i = 0; i < reflectorCount; i++) {
+        reflectorNames.add(in.readUTF());
+      }
+      headerLength = in.readInt();
+    } finally {
+      in.close();
+    }
+
+    List<Rotor> rotors;
+    List<Rotor> reflectors;
+    try {
+      rotors = lookup(rotorNames);
+      reflectors = lookup(reflectorNames);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Stale permutation atlas " + file + ": " + e.getMessage());
+    }
+    if (checksum != checksum(rotorNames, reflectorNames)) {
+      throw new IOException("Stale permutation atlas " + file
+          + ", the rotor wiring has changed since it was built.");
+    }
+
+    KeySpace keySpace = new KeySpace(rotors, reflectors);
+    long dataLength = keySpace.size() * 26;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() != headerLength + dataLength) {
+        throw new IOException("Permutation atlas " + file + " has the wrong length.");
+      }
+      if (dataLength > Integer.MAX_VALUE) {
+        throw new IOException("Permutation atlas " + file + " is too big to map.");
+      }
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, headerLength,
+          dataLength);
+      return new PermutationAtlas(keySpace, data);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns where the permutations for the given rotors start, for use with get(), or -1 if the
+   * atlas doesn't have them.
+   */
+  int getBase(Rotor left, Rotor middle, Rotor right, Rotor reflector) {
+    Integer slice = slices.get(ImmutableList.of(left, middle, right, reflector));
+    return slice == null ? -1 : slice * KeySpace.POSITIONS * 26;
+  }
+
+  /**
+   * Returns the output for input with the rotors at the given offsets, where base came from
+   * getBase(). Safe to call from any number of threads.
+   */
+  int get(int base, int offset1, int offset2, int offset3, int input) {
+    return data.get(base + ((offset1 * 26 + offset2) * 26 + offset3) * 26 + input);
+  }
+
+  /**
+   * Like get(), with the offsets packed as {@code (offset1 * 26 + offset2) * 26 + offset3}.
+   */
+  int get(int base, int offsets, int input) {
+    return data.get(base + offsets * 26 + input);
+  }
+
+  /** The number of (rotor order, reflector) pairs in the atlas. */
+  public int getSliceCount() {
+    return keySpace.getSliceCount();
+  }
+
+  private static void writeHeader(DataOutputStream out, List<String> rotorNames,
+      List<String> reflectorNames) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(checksum(rotorNames, reflectorNames));
+    out.writeInt(rotorNames.size());
+    for (String name : rotorNames) {
+      out.writeUTF(name);
+    }
+    out.writeInt(reflectorNames.size());
+    for (String name : reflectorNames) {
+      out.writeUTF(name);
+    }
+    // The header's own length, including this int.
+    out.writeInt(out.size() + 4);
+  }
+
+  private static List<Rotor> lookup(List<String> names) {
+    List<Rotor> rotors = Lists.newArrayList();
+    for (String name : names) {
+      Rotor rotor = Rotor.getRotorByName(name);
+      Preconditions.checkArgument(rotor != null, "Rotor %s does not exist.", name);
+      rotors.add(rotor);
+    }
+    return rotors;
+  }
+
+  // A CRC32 of each rotor's name, description and wiring.
+  private static long checksum(List<String> rotorNames, List<String> reflectorNames) {
+    CRC32 crc = new CRC32();
+    for (List<String> names : ImmutableList.of(rotorNames, reflectorNames)) {
+      for (String name : names) {
+        Rotor rotor = Rotor.getRotorByName(name);
+        crc.update(name.getBytes(Charsets.UTF_8));
+        crc.update(rotor.toString().getBytes(Charsets.UTF_8));
+        for (int output : rotor.getForwardTables()[0]) {
+          crc.update(output);
+        }
+      }
+    }
+    return crc.getValue();
+  }
+}
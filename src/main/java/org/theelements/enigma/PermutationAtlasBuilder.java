@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.File;
+import java.util.List;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Writes a PermutationAtlas for EnigmaRunner's -atlas option.
+ *
+ * <pre>
+ * java -cp build/libs/enigma-java-1.0.0-all.jar org.theelements.enigma.PermutationAtlasBuilder \
+ *     -rotors 1,2,3,4,5 -reflectors A,B,C -output enigma.atlas
+ * </pre>
+ */
+public class PermutationAtlasBuilder {
+
+  @Option(name="-rotors", usage="The rotors to include.")
+  private String rotors = "1, 2, 3, 4, 5";
+
+  @Option(name="-reflectors", usage="The reflectors to include.")
+  private String reflectors = "A, B, C";
+
+  @Option(name="-output", usage="The file to write the atlas to.")
+  private String output = null;
+
+  public void doMain(String[] args) throws Exception {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    if (output == null) {
+      throw new Exception("You must provide an output file.");
+    }
+    Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
+    List<String> rotorNames = splitter.splitToList(rotors);
+    List<String> reflectorNames = splitter.splitToList(reflectors);
+    if (rotorNames.size() < 3 || reflectorNames.isEmpty()) {
+      throw new Exception("You must specify at least 3 rotors and 1 reflector.");
+    }
+
+    File file = new File(output);
+    PermutationAtlas.generate(file, rotorNames, reflectorNames);
+    System.out.println(String.format("Wrote %d rotor order and reflector slices, %d bytes, to %s",
+        PermutationAtlas.open(file).getSliceCount(), file.length(), file));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new PermutationAtlasBuilder().doMain(args);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The plugboard (Steckerbrett) swaps pairs of letters on the way into and out of the rotors.
+ * Written as space separated pairs, for example "AB CD EF".
+ */
+public class Plugboard {
+  private final int[] wiring;
+
+  private Plugboard(int[] wiring) {
+    this.wiring = wiring;
+  }
+
+  /**
+   * Parses space separated letter pairs. Each letter may only be used once.
+   */
+  public static Plugboard parse(String pairs) {
+    int[] wiring = identity();
+    for (String pair : pairs.trim().split("\\s+")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      Preconditions.checkArgument(pair.length() == 2, "Bad plugboard pair '%s'.", pair);
+      int a = Character.toUpperCase(pair.charAt(0)) - 'A';
+      int b = Character.toUpperCase(pair.charAt(1)) - 'A';
+      Preconditions.checkArgument(a >= 0 && a < 26 && b >= 0 && b < 26 && a != b,
+          "Bad plugboard pair '%s'.", pair);
+      Preconditions.checkArgument(wiring[a] == a && wiring[b] == b,
+          "Letters in '%s' are already plugged.", pair);
+      wiring[a] = b;
+      wiring[b] = a;
+    }
+    return new Plugboard(wiring);
+  }
+
+  /**
+   * Wraps a wiring where wiring[a] == b means a and b are swapped. The array is copied.
+   */
+  static Plugboard fromWiring(int[] wiring) {
+    Preconditions.checkArgument(wiring.length == 26);
+    for (int i = 0; i < 26; i++) {
+      Preconditions.checkArgument(wiring[wiring[i]] == i, "Wiring must be an involution.");
+    }
+    return new Plugboard(wiring.clone());
+  }
+
+  static int[] identity() {
+    int[] wiring = new int[26];
+    for (int i = 0; i < 26; i++) {
+      wiring[i] = i;
+    }
+    return wiring;
+  }
+
+  /** The wiring as an array indexed by letter - 'A'. The returned array must not be modified. */
+  int[] getWiring() {
+    return wiring;
+  }
+
+  public int getPairCount() {
+    int count = 0;
+    for (int i = 0; i < 26; i++) {
+      if (wiring[i] > i) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 26; i++) {
+      if (wiring[i] > i) {
+        if (buf.length() > 0) {
+          buf.append(' ');
+        }
+        buf.append((char) ('A' + i)).append((char) ('A' + wiring[i]));
+      }
+    }
+    return buf.toString();
+  }
+}
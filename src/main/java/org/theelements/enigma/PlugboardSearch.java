@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Finds plugboard settings by hill climbing. There are far too many plugboards to try them all,
+ * so for each candidate key (rotor order, reflector and starting positions) this starts from a
+ * plugboard, tries connecting or disconnecting every pair of letters, keeps any change that
+ * improves the score and repeats until nothing helps. Each candidate gets several restarts from
+ * different random plugboards, and all of the climbs run in parallel on a ForkJoinPool.
+ *
+ * <p>The candidates usually come from a KeySearch scored by index of coincidence, which still
+ * works when the plugboard is unknown.
+ */
+class PlugboardSearch {
+
+  private final KeySpace keySpace;
+  private final InnerPermutationCache innerPermutations;
+  private final ThreadLocal<CandidateEvaluator> evaluators;
+  private final int restarts;
+  private final int maxPairs;
+  private final long deadline;
+
+  /**
+   * @param deadline System.nanoTime() after which no more climbing is done, the best plugboards
+   *     found by then are returned
+   */
+  PlugboardSearch(KeySpace keySpace, InnerPermutationCache innerPermutations,
+      final char[] message, final String crib, final Scorer scorer, int restarts, int maxPairs,
+      long deadline) {
+    this.keySpace = keySpace;
+    this.innerPermutations = innerPermutations;
+    this.restarts = restarts;
+    this.maxPairs = maxPairs;
+    this.deadline = deadline;
+    this.evaluators = new ThreadLocal<CandidateEvaluator>() {
+      @Override
+      protected CandidateEvaluator initialValue() {
+        return new CandidateEvaluator(message, crib, scorer);
+      }
+    };
+  }
+
+  /**
+   * Climbs from every candidate key and returns the best numResults results, best first.
+   */
+  List<KeyResult> run(ForkJoinPool pool, ScoredKeys candidates, int numResults) throws Exception {
+    List<Callable<KeyResult>> climbs = Lists.newArrayList();
+    for (int i = 0; i < candidates.size(); i++) {
+      for (int restart = 0; restart < restarts; restart++) {
+        climbs.add(new Climb(candidates.getKey(i), restart));
+      }
+    }
+
+    // Keep the best restart for each key.
+    List<KeyResult> results = Lists.newArrayList();
+    KeyResult bestForKey = null;
+    for (Future<KeyResult> future : pool.invokeAll(climbs)) {
+      KeyResult result = future.get();
+      if (bestForKey != null && bestForKey.getKey() != result.getKey()) {
+        results.add(bestForKey);
+        bestForKey = null;
+      }
+      if (bestForKey == null || result.getScore() < bestForKey.getScore()) {
+        bestForKey = result;
+      }
+    }
+    if (bestForKey != null) {
+      results.add(bestForKey);
+    }
+
+    Collections.sort(results);
+    return results.subList(0, Math.min(numResults, results.size()));
+  }
+
+  private class Climb implements Callable<KeyResult> {
+    private final long key;
+    private final int restart;
+
+    Climb(long key, int restart) {
+      this.key = key;
+      this.restart = restart;
+    }
+
+    @Override
+    public KeyResult call() {
+      CandidateEvaluator evaluator = evaluators.get();
+      Rotor[] rotors = keySpace.getRotorOrder(EnigmaKey.rotorOrder(key));
+      evaluator.setRotors(rotors[0], rotors[1], rotors[2],
+          keySpace.getReflector(EnigmaKey.reflector(key)), innerPermutations);
+
+      // The first climb starts from an empty plugboard, the rest from random ones.
+      int[] plugboard = Plugboard.identity();
+      if (restart > 0) {
+        Random random = new Random(key * 31 + restart);
+        for (int i = 0; i < maxPairs / 2; i++) {
+          connect(plugboard, random.nextInt(26), random.nextInt(26));
+        }
+      }
+
+      double score = evaluate(evaluator, plugboard);
+      int[] trial = new int[26];
+      boolean improved = true;
+      while (improved && System.nanoTime() < deadline) {
+        improved = false;
+        for (int a = 0; a < 26; a++) {
+          for (int b = a + 1; b < 26; b++) {
+            System.arraycopy(plugboard, 0, trial, 0, 26);
+            if (trial[a] == b) {
+              disconnect(trial, a);
+            } else {
+              connect(trial, a, b);
+              if (pairCount(trial) > maxPairs) {
+                continue;
+              }
+            }
+
+            double trialScore = evaluate(evaluator, trial);
+            if (trialScore < score) {
+              score = trialScore;
+              System.arraycopy(trial, 0, plugboard, 0, 26);
+              improved = true;
+            }
+          }
+        }
+      }
+
+      evaluator.setPlugboard(null);
+      return new KeyResult(key, Plugboard.fromWiring(plugboard), score);
+    }
+
+    private double evaluate(CandidateEvaluator evaluator, int[] plugboard) {
+      evaluator.setPlugboard(plugboard);
+      return evaluator.evaluate(EnigmaKey.position1(key), EnigmaKey.position2(key),
+          EnigmaKey.position3(key));
+    }
+  }
+
+  /** Connects a and b, first disconnecting anything either of them was connected to. */
+  private static void connect(int[] plugboard, int a, int b) {
+    if (a == b) {
+      return;
+    }
+    disconnect(plugboard, a);
+    disconnect(plugboard, b);
+    plugboard[a] = b;
+    plugboard[b] = a;
+  }
+
+  private static void disconnect(int[] plugboard, int a) {
+    int partner = plugboard[a];
+    plugboard[partner] = partner;
+    plugboard[a] = a;
+  }
+
+  private static int pairCount(int[] plugboard) {
+    int count = 0;
+    for (int i = 0; i < 26; i++) {
+      if (plugboard[i] > i) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Scores a few evenly spaced start positions in every slice and searches the slices with the
+ * best of them first. This costs SAMPLES keys per slice, under 1% of the key space. It is only a
+ * heuristic, the key itself is rarely one of the samples, so it can be combined with a time
+ * budget but shouldn't be relied on to find the key early.
+ */
+class PreScoreSlicePrioritizer implements SlicePrioritizer {
+  static final int SAMPLES = 104;
+
+  private final char[] message;
+  private final Scorer scorer;
+  private final InnerPermutationCache innerPermutations;
+
+  PreScoreSlicePrioritizer(char[] message, Scorer scorer,
+      InnerPermutationCache innerPermutations) {
+    this.message = message;
+    this.scorer = scorer;
+    this.innerPermutations = innerPermutations;
+  }
+
+  @Override
+  public int[] prioritize(KeySpace keySpace) {
+    CandidateEvaluator evaluator = new CandidateEvaluator(message, null, scorer);
+    int slices = keySpace.getSliceCount();
+    final double[] scores = new double[slices];
+    for (int slice = 0; slice < slices; slice++) {
+      Rotor[] rotors = keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slice));
+      evaluator.setRotors(rotors[0], rotors[1], rotors[2],
+          keySpace.getReflector(keySpace.getSliceReflector(slice)), innerPermutations);
+      double best = Double.POSITIVE_INFINITY;
+      for (int sample = 0; sample < SAMPLES; sample++) {
+        int position = sample * (KeySpace.POSITIONS / SAMPLES);
+        best = Math.min(best,
+            evaluator.evaluate(position / 676, position / 26 % 26, position % 26, best));
+      }
+      scores[slice] = best;
+    }
+    Integer[] order = new Integer[slices];
+    for (int slice = 0; slice < slices; slice++) {
+      order[slice] = slice;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(scores[a], scores[b]);
+      }
+    });
+    int[] result = new int[slices];
+    for (int i = 0; i < slices; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+/**
+ * Finds ring settings for keys that were found with all rings at 'A'.
+ *
+ * <p>Changing a ring and the position of the same rotor by the same amount leaves the wiring
+ * where it was and only moves the point where the rotor turns over the next one. So a search
+ * with the rings at 'A' finds the right wiring offsets, and decodes correctly up to the first
+ * turnover that happens at the wrong time, which is usually enough to rank well. For each of
+ * those keys this tries every ring setting for rotors 2 and 3 while keeping the offsets fixed,
+ * 676 keys each. The ring of rotor 1 never matters since rotor 1 doesn't turn anything over.
+ */
+class RingSearch {
+  private final KeySpace keySpace;
+  private final InnerPermutationCache innerPermutations;
+  private final ThreadLocal<CandidateEvaluator> evaluators;
+
+  RingSearch(KeySpace keySpace, InnerPermutationCache innerPermutations, final char[] message,
+      final String crib, final Scorer scorer) {
+    this.keySpace = keySpace;
+    this.innerPermutations = innerPermutations;
+    this.evaluators = new ThreadLocal<CandidateEvaluator>() {
+      @Override
+      protected CandidateEvaluator initialValue() {
+        return new CandidateEvaluator(message, crib, scorer);
+      }
+    };
+  }
+
+  /**
+   * Tries every ring setting for each candidate and returns the best numResults keys, which
+   * include their ring settings.
+   */
+  ScoredKeys run(ForkJoinPool pool, ScoredKeys candidates, int numResults) throws Exception {
+    final ConcurrentTopK best = new ConcurrentTopK(numResults);
+    List<Callable<Void>> tasks = Lists.newArrayList();
+    for (int i = 0; i < candidates.size(); i++) {
+      final long key = candidates.getKey(i);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          BoundedScoreHeap local = best.newLocalHeap();
+          searchRings(key, local, best);
+          best.merge(local);
+          return null;
+        }
+      });
+    }
+
+    for (Future<Void> future : pool.invokeAll(tasks)) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return best.getSorted();
+  }
+
+  private void searchRings(long key, BoundedScoreHeap local, ConcurrentTopK best) {
+    CandidateEvaluator evaluator = evaluators.get();
+    Rotor[] rotors = keySpace.getRotorOrder(EnigmaKey.rotorOrder(key));
+    evaluator.setRotors(rotors[0], rotors[1], rotors[2],
+        keySpace.getReflector(EnigmaKey.reflector(key)), innerPermutations);
+
+    int position1 = EnigmaKey.position1(key);
+    int offset2 = EnigmaKey.position2(key);
+    int offset3 = EnigmaKey.position3(key);
+    for (int ring2 = 0; ring2 < 26; ring2++) {
+      for (int ring3 = 0; ring3 < 26; ring3++) {
+        evaluator.setRings(0, ring2, ring3);
+        double threshold = Math.min(local.threshold(), best.getThreshold());
+        double score = evaluator.evaluate(position1, (offset2 + ring2) % 26,
+            (offset3 + ring3) % 26, threshold);
+        if (score <= threshold) {
+          local.offer(score, EnigmaKey.withRings(EnigmaKey.pack(EnigmaKey.rotorOrder(key),
+              EnigmaKey.reflector(key), position1, (offset2 + ring2) % 26,
+              (offset3 + ring3) % 26), ring2, ring3));
+        }
+      }
+    }
+    evaluator.setRings(0, 0, 0);
+  }
+}
@@ -75,18 +75,42 @@ public class Rotor {
   private final ImmutableMap<Character, Character> reverseMap;
   private final int turnover;
 
+  // Compiled forms of map and reverseMap, indexed by [offset][inputIndex]. Each entry already
+  // accounts for the rotor offset, so it is the same value getOutputIndex in EnigmaMachine
+  // would compute.
+  private final int[][] forwardTables;
+  private final int[][] reverseTables;
+  // The same tables flattened to [offset * 26 + inputIndex].
+  private final int[] flatForwardTable;
+  private final int[] flatReverseTable;
+
   private Rotor(String description, String mapping, char turnoverLetter) {
     this.description = description;
     map = buildMap(mapping);
     reverseMap = map.inverse();
 
     turnover = (turnoverLetter - 'A') + 1;
+
+    forwardTables = buildTables(mapping, false);
+    reverseTables = buildTables(mapping, true);
+    flatForwardTable = flatten(forwardTables);
+    flatReverseTable = flatten(reverseTables);
   }
 
   public static Rotor getRotorByName(String name) {
     return registery.get(name);
   }
 
+  /** Returns the name getRotorByName() finds this rotor by. */
+  public String getName() {
+    for (Map.Entry<String, Rotor> entry : registery.entrySet()) {
+      if (entry.getValue() == this) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("Unregistered rotor " + description);
+  }
+
   public char get(char input, boolean reverse) {
     if (reverse) {
       return reverseMap.get(input);
@@ -95,6 +119,38 @@ public class Rotor {
     }
   }
 
+  /**
+   * Returns the forward lookup tables for the rotor, indexed by [offset][inputIndex]. The returned
+   * arrays must not be modified.
+   */
+  int[][] getForwardTables() {
+    return forwardTables;
+  }
+
+  /**
+   * Returns the reverse lookup tables for the rotor, indexed by [offset][inputIndex]. The returned
+   * arrays must not be modified.
+   */
+  int[][] getReverseTables() {
+    return reverseTables;
+  }
+
+  /**
+   * Returns getForwardTables() as one array indexed by {@code offset * 26 + inputIndex}. The
+   * returned array must not be modified.
+   */
+  int[] getFlatForwardTable() {
+    return flatForwardTable;
+  }
+
+  /**
+   * Returns getReverseTables() as one array indexed by {@code offset * 26 + inputIndex}. The
+   * returned array must not be modified.
+   */
+  int[] getFlatReverseTable() {
+    return flatReverseTable;
+  }
+
   public boolean turnover(int position) {
     return position == turnover;
   }
@@ -114,4 +170,36 @@ public class Rotor {
 
     return builder.build();
   }
+
+  private static int[][] buildTables(String mapping, boolean reverse) {
+    int[] base = new int[26];
+    for (int i = 0; i < mapping.length(); i++) {
+      int output = mapping.charAt(i) - 'A';
+      if (reverse) {
+        base[output] = i;
+      } else {
+        base[i] = output;
+      }
+    }
+
+    int[][] tables = new int[26][26];
+    for (int offset = 0; offset < 26; offset++) {
+      for (int input = 0; input < 26; input++) {
+        int value = base[(input + offset) % 26] - offset;
+        if (value < 0) {
+          value += 26;
+        }
+        tables[offset][input] = value;
+      }
+    }
+    return tables;
+  }
+
+  private static int[] flatten(int[][] tables) {
+    int[] flat = new int[26 * 26];
+    for (int offset = 0; offset < 26; offset++) {
+      System.arraycopy(tables[offset], 0, flat, offset * 26, 26);
+    }
+    return flat;
+  }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+
+/**
+ * The LaneDecoder used when the Vector API isn't available. It decodes the lanes one after the
+ * other with the same tables as the Vector API decoder.
+ */
+final class ScalarLaneDecoder extends LaneDecoder {
+  static final int LANES = 8;
+
+  private final int[] text;
+  private final int[] counts = new int[26];
+
+  private int[] forward3;
+  private int[] reverse3;
+  private byte[] innerTable;
+  private StateSequence sequence;
+
+  ScalarLaneDecoder(int[] message, int[] crib, Scorer scorer) {
+    super(message, crib, scorer);
+    this.text = new int[message.length];
+  }
+
+  @Override
+  int getLanes() {
+    return LANES;
+  }
+
+  @Override
+  void setRotors(Rotor rotor2, Rotor rotor3, byte[] innerTable) {
+    forward3 = rotor3.getFlatForwardTable();
+    reverse3 = rotor3.getFlatReverseTable();
+    this.innerTable = innerTable;
+    sequence = StateSequence.get(rotor2, rotor3, message.length);
+  }
+
+  @Override
+  void evaluate(int first, double[] scores) {
+    int[] rightBases = sequence.getRightBases();
+    int[] innerBases = sequence.getInnerBases();
+    for (int lane = 0; lane < LANES; lane++) {
+      int start = sequence.getStart(first + lane);
+      Arrays.fill(counts, 0);
+      for (int press = 0; press < message.length; press++) {
+        int right = rightBases[start + press];
+        int letter = reverse3[right
+            + innerTable[innerBases[start + press] + forward3[right + message[press]]]];
+        text[press] = letter;
+        counts[letter]++;
+      }
+      scores[lane] = score(text, counts);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Scores a decoded message, the search keeps the messages with the smallest scores. Scorers are
+ * shared by all of the worker threads, so implementations must be thread safe.
+ */
+public interface Scorer {
+
+  /**
+   * Returns the score of the first length letters of text, smaller is better. The letters are
+   * indexes in the range [0, 26) and counts holds the number of times each one appears.
+   */
+  double score(int[] text, int[] counts, int length);
+
+  /**
+   * Returns a table in the format of FrequencyAnalysis.lowerBoundIncrements() that bounds this
+   * scorer from below while a message is only partly decoded, or null if there is no such bound.
+   */
+  double[] lowerBoundIncrements(int length);
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * The ways a decoded message can be scored. The n-gram tables are loaded the first time they are
+ * used and then kept for the life of the process.
+ */
+public enum ScoringMethod {
+  FREQUENCY {
+    @Override
+    public Scorer getScorer() {
+      return new FrequencyScorer();
+    }
+  },
+  IOC {
+    @Override
+    public Scorer getScorer() {
+      return new IndexOfCoincidenceScorer();
+    }
+  },
+  BIGRAM {
+    @Override
+    public Scorer getScorer() {
+      return new NgramScorer(NgramTable.load(2));
+    }
+  },
+  TRIGRAM {
+    @Override
+    public Scorer getScorer() {
+      return new NgramScorer(NgramTable.load(3));
+    }
+  },
+  QUADGRAM {
+    @Override
+    public Scorer getScorer() {
+      return new NgramScorer(NgramTable.load(4));
+    }
+  };
+
+  public abstract Scorer getScorer();
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.hash.Hashing;
+
+/**
+ * The progress of a KeySearch that can be saved to a file and resumed from: the ranges of key
+ * indexes that have been searched and the best keys found in them. A range is only counted as
+ * searched once its keys are in the top-K, and both are saved together, so a resumed search ends
+ * with the same results as one that was never stopped.
+ *
+ * <p>The file is a small header, the searched ranges and the top-K. The header holds a SHA-256
+ * digest of the search's fingerprint rather than the fingerprint, which includes the whole
+ * message and so can be any length. It is written to a temporary file next to it which is then
+ * renamed over it, so a crash while saving leaves the last one.
+ */
+final class SearchCheckpoint {
+  private static final int MAGIC = 0x454E4350;
+  private static final int VERSION = 2;
+
+  private final File file;
+  private final byte[] digest;
+  private final RangeSet<Long> searched = TreeRangeSet.create();
+  private ScoredKeys restored;
+
+  /**
+   * @param fingerprint describes the search, a checkpoint is only resumed by a search with the
+   *     same fingerprint
+   */
+  SearchCheckpoint(File file, String fingerprint) {
+    this.file = file;
+    this.digest = Hashing.sha256().hashString(fingerprint, Charsets.UTF_8).asBytes();
+  }
+
+  /**
+   * Reads a checkpoint saved by save(). Throws an IOException if the file isn't a checkpoint or
+   * was saved by a different search.
+   */
+  static SearchCheckpoint load(File file, String fingerprint) throws IOException {
+    SearchCheckpoint checkpoint = new SearchCheckpoint(file, fingerprint);
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a search checkpoint: " + file);
+      }
+      byte[] digest = new byte[checkpoint.digest.length];
+      in.readFully(digest);
+      if (!Arrays.equals(digest, checkpoint.digest)) {
+        throw new IOException("Checkpoint " + file + " was saved by a different search.");
+      }
+      int ranges = in.readInt();
+      for (int i = 0; i < ranges; i++) {
+        long start = in.readLong();
+        checkpoint.searched.add(Range.closedOpen(start, in.readLong()));
+      }
+      int size = in.readInt();
+      BoundedScoreHeap heap = new BoundedScoreHeap(Math.max(1, size));
+      for (int i = 0; i < size; i++) {
+        double score = in.readDouble();
+        heap.offer(score, in.readLong());
+      }
+      checkpoint.restored = heap.toSorted();
+    } catch (EOFException e) {
+      throw new IOException("Checkpoint " + file + " is truncated.", e);
+    } finally {
+      in.close();
+    }
+    return checkpoint;
+  }
+
+  /** Adds the best keys found before the checkpoint was saved to best. */
+  void restore(ConcurrentTopK best) {
+    if (restored != null) {
+      BoundedScoreHeap heap = best.newLocalHeap();
+      for (int i = 0; i < restored.size(); i++) {
+        heap.offer(restored.getScore(i), restored.getKey(i));
+      }
+      best.merge(heap);
+    }
+  }
+
+  /**
+   * Merges local into best and marks [start, end) as searched, together so that a checkpoint
+   * saved at the same time sees both or neither.
+   */
+  synchronized void complete(long start, long end, BoundedScoreHeap local, ConcurrentTopK best) {
+    best.merge(local);
+    searched.add(Range.closedOpen(start, end));
+  }
+
+  /** Returns the parts of [start, end) that haven't been searched yet, in order. */
+  synchronized List<Range<Long>> remaining(long start, long end) {
+    RangeSet<Long> remaining = TreeRangeSet.create();
+    remaining.add(Range.closedOpen(start, end));
+    remaining.removeAll(searched);
+    return ImmutableList.copyOf(remaining.asRanges());
+  }
+
+  /** The number of keys marked as searched. */
+  synchronized long getSearchedCount() {
+    long count = 0;
+    for (Range<Long> range : searched.asRanges()) {
+      count += range.upperEndpoint() - range.lowerEndpoint();
+    }
+    return count;
+  }
+
+  /** Atomically replaces the file with the ranges searched so far and the best keys in them. */
+  void save(ConcurrentTopK best) throws IOException {
+    List<Range<Long>> ranges;
+    ScoredKeys keys;
+    synchronized (this) {
+      ranges = ImmutableList.copyOf(searched.asRanges());
+      keys = best.getSorted();
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(digest);
+      out.writeInt(ranges.size());
+      for (Range<Long> range : ranges) {
+        out.writeLong(range.lowerEndpoint());
+        out.writeLong(range.upperEndpoint());
+      }
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        out.writeDouble(keys.getScore(i));
+        out.writeLong(keys.getKey(i));
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+}
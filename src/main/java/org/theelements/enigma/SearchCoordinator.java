@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hands out a key space to SearchWorkers over TCP and merges the best keys they find. The key
+ * indexes, see KeySpace, are split into leases of leaseSize keys. A worker asks for a lease,
+ * searches it and sends back its top-K before asking for the next one. Leases that aren't
+ * returned in time, or whose worker disconnects, are handed out again, and only the first result
+ * for each lease is kept.
+ *
+ * <p>The protocol is DataOutputStream values on one connection per worker: the worker sends the
+ * shared token, the coordinator closes the connection if it doesn't match or sends the SearchJob,
+ * then the worker sends REQUEST and gets a LEASE (id, start, end, threshold) or
+ * DONE, and sends RESULT (id, count, count * (score, key)) for each lease it searched. The
+ * threshold is the worst of the best keys merged so far, the worker needn't send keys that score
+ * worse. Results for leases that weren't handed to that worker, or with keys outside the lease,
+ * end the connection.
+ */
+final class SearchCoordinator {
+  static final int REQUEST = 1;
+  static final int LEASE = 2;
+  static final int DONE = 3;
+  static final int RESULT = 4;
+
+  private final SearchJob job;
+  private final KeySpace keySpace;
+  private final long size;
+  private final byte[] token;
+  private final long leaseSize;
+  private final long leaseMillis;
+  private final ConcurrentTopK best;
+  private final ExecutorService connections = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coordinator-%d").build());
+
+  // Guarded by this.
+  private final boolean[] completed;
+  private final long[] expiries;
+  private final int[] owners;
+  private final Deque<Integer> pending = new ArrayDeque<Integer>();
+  private int remaining;
+  private int nextOwner;
+  private long leasesIssued;
+  private long leasesReissued;
+  private boolean closed;
+
+  private ServerSocket serverSocket;
+
+  /**
+   * @param leaseSize the number of keys in each lease, at least 1
+   * @param leaseMillis how long a worker has to return a lease before it is handed out again
+   * @param token the secret a worker has to send before it is given the job
+   */
+  SearchCoordinator(SearchJob job, long leaseSize, long leaseMillis, String token) {
+    Preconditions.checkArgument(leaseSize > 0, "The lease size must be at least 1.");
+    this.job = job;
+    this.keySpace = new KeySpace(job.getRotors(), job.getReflectors());
+    this.size = keySpace.size();
+    this.token = token.getBytes(Charsets.UTF_8);
+    this.leaseSize = leaseSize;
+    this.leaseMillis = leaseMillis;
+    this.best = new ConcurrentTopK(job.getNumResults());
+    int leases = (int) ((size + leaseSize - 1) / leaseSize);
+    this.completed = new boolean[leases];
+    this.expiries = new long[leases];
+    this.owners = new int[leases];
+    Arrays.fill(owners, -1);
+    for (int i = 0; i < leases; i++) {
+      pending.add(i);
+    }
+    this.remaining = leases;
+  }
+
+  /** Starts accepting workers on the loopback address, see start(InetAddress, int). */
+  int start(int port) throws IOException {
+    return start(InetAddress.getLoopbackAddress(), port);
+  }
+
+  /** Starts accepting workers on address and port, 0 for any free port, and returns the port. */
+  int start(InetAddress address, int port) throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(address, port));
+    connections.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            final Socket socket = serverSocket.accept();
+            connections.execute(new Runnable() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            });
+          } catch (IOException e) {
+            // The socket was closed.
+          }
+        }
+      }
+    });
+    return serverSocket.getLocalPort();
+  }
+
+  /** Waits until every lease has been searched and returns the best keys found. */
+  ScoredKeys awaitResults() throws InterruptedException {
+    synchronized (this) {
+      while (remaining > 0 && !closed) {
+        wait();
+      }
+    }
+    return best.getSorted();
+  }
+
+  /** Stops accepting workers, the ones still connected are told there is no more work. */
+  void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+    connections.shutdown();
+  }
+
+  synchronized long getLeasesIssued() {
+    return leasesIssued;
+  }
+
+  /** The number of leases handed out again because their worker was too slow or went away. */
+  synchronized long getLeasesReissued() {
+    return leasesReissued;
+  }
+
+  private void serve(Socket socket) {
+    int owner;
+    synchronized (this) {
+      owner = nextOwner++;
+    }
+    // The leases handed to this worker.
+    Set<Integer> leased = Sets.newHashSet();
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      if (!MessageDigest.isEqual(token, in.readUTF().getBytes(Charsets.UTF_8))) {
+        throw new IOException("Wrong token");
+      }
+      job.write(out);
+      out.flush();
+      while (true) {
+        int type = in.readInt();
+        if (type == REQUEST) {
+          int lease = nextLease(owner);
+          if (lease < 0) {
+            out.writeInt(DONE);
+            out.flush();
+            break;
+          }
+          leased.add(lease);
+          out.writeInt(LEASE);
+          out.writeInt(lease);
+          out.writeLong(lease * leaseSize);
+          out.writeLong(Math.min(size, (lease + 1) * leaseSize));
+          out.writeDouble(best.getThreshold());
+          out.flush();
+        } else if (type == RESULT) {
+          int lease = in.readInt();
+          int count = in.readInt();
+          if (!leased.contains(lease) || count < 0 || count > job.getNumResults()) {
+            throw new IOException("Bad result for lease " + lease);
+          }
+          long start = lease * leaseSize;
+          long end = Math.min(size, (lease + 1) * leaseSize);
+          BoundedScoreHeap heap = best.newLocalHeap();
+          for (int i = 0; i < count; i++) {
+            double score = in.readDouble();
+            long key = in.readLong();
+            long index = keySpace.getIndex(key);
+            if (Double.isNaN(score) || index < start || index >= end) {
+              throw new IOException("Bad key " + key + " for lease " + lease);
+            }
+            heap.offer(score, key);
+          }
+          complete(lease, heap);
+        } else {
+          throw new IOException("Unknown message " + type);
+        }
+      }
+    } catch (IOException e) {
+      // The worker went away, its leases are handed out again below.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      release(owner);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+  }
+
+  // Returns the next lease for owner, waiting for one to expire if they are all handed out, or
+  // -1 when there are none left.
+  private synchronized int nextLease(int owner) throws InterruptedException {
+    while (remaining > 0 && !closed) {
+      Integer lease = pending.poll();
+      if (lease != null) {
+        if (!completed[lease]) {
+          issue(lease, owner);
+          return lease;
+        }
+        continue;
+      }
+
+      long now = System.currentTimeMillis();
+      long waitMillis = leaseMillis;
+      for (int i = 0; i < completed.length; i++) {
+        if (!completed[i] && expiries[i] > 0) {
+          if (expiries[i] <= now) {
+            leasesReissued++;
+            issue(i, owner);
+            return i;
+          }
+          waitMillis = Math.min(waitMillis, expiries[i] - now);
+        }
+      }
+      wait(waitMillis);
+    }
+    return -1;
+  }
+
+  private void issue(int lease, int owner) {
+    leasesIssued++;
+    owners[lease] = owner;
+    expiries[lease] = System.currentTimeMillis() + leaseMillis;
+  }
+
+  private synchronized void complete(int lease, BoundedScoreHeap heap) {
+    // A lease that was handed out again can come back twice, its keys are only merged once.
+    if (!completed[lease]) {
+      completed[lease] = true;
+      best.merge(heap);
+      remaining--;
+      notifyAll();
+    }
+  }
+
+  private synchronized void release(int owner) {
+    for (int i = 0; i < completed.length; i++) {
+      if (owners[i] == owner && !completed[i]) {
+        owners[i] = -1;
+        expiries[i] = 0;
+        pending.add(i);
+      }
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Everything a SearchWorker needs to search part of a key space for a SearchCoordinator: the
+ * message and crib, the rotors and reflectors by name, the scorer and how many results to keep.
+ */
+final class SearchJob {
+  private static final int MAGIC = 0x454E4A42;
+  private static final int VERSION = 1;
+
+  private final String message;
+  private final String crib;
+  private final ImmutableList<Rotor> rotors;
+  private final ImmutableList<Rotor> reflectors;
+  private final ScoringMethod scoringMethod;
+  private final DecodeEngine engine;
+  private final int numResults;
+
+  SearchJob(String message, String crib, List<Rotor> rotors, List<Rotor> reflectors,
+      ScoringMethod scoringMethod, DecodeEngine engine, int numResults) {
+    this.message = message;
+    this.crib = crib;
+    this.rotors = ImmutableList.copyOf(rotors);
+    this.reflectors = ImmutableList.copyOf(reflectors);
+    this.scoringMethod = scoringMethod;
+    this.engine = engine;
+    this.numResults = numResults;
+  }
+
+  String getMessage() {
+    return message;
+  }
+
+  /** The crib, or null if there isn't one. */
+  String getCrib() {
+    return crib;
+  }
+
+  List<Rotor> getRotors() {
+    return rotors;
+  }
+
+  List<Rotor> getReflectors() {
+    return reflectors;
+  }
+
+  ScoringMethod getScoringMethod() {
+    return scoringMethod;
+  }
+
+  DecodeEngine getEngine() {
+    return engine;
+  }
+
+  int getNumResults() {
+    return numResults;
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(message);
+    out.writeBoolean(crib != null);
+    if (crib != null) {
+      out.writeUTF(crib);
+    }
+    writeRotors(out, rotors);
+    writeRotors(out, reflectors);
+    out.writeUTF(scoringMethod.name());
+    out.writeUTF(engine.name());
+    out.writeInt(numResults);
+  }
+
+  static SearchJob read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("Not a search job.");
+    }
+    String message = in.readUTF();
+    String crib = in.readBoolean() ? in.readUTF() : null;
+    List<Rotor> rotors = readRotors(in);
+    List<Rotor> reflectors = readRotors(in);
+    try {
+      ScoringMethod scoringMethod = ScoringMethod.valueOf(in.readUTF());
+      DecodeEngine engine = DecodeEngine.valueOf(in.readUTF());
+      return new SearchJob(message, crib, rotors, reflectors, scoringMethod, engine,
+          in.readInt());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unsupported search job: " + e.getMessage());
+    }
+  }
+
+  private static void writeRotors(DataOutputStream out, List<Rotor> rotors) throws IOException {
+    out.writeInt(rotors.size());
+    for (Rotor rotor : rotors) {
+      out.writeUTF(rotor.getName());
+    }
+  }
+
+  private static List<Rotor> readRotors(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > 100) {
+      throw new IOException("Bad rotor count " + count);
+    }
+    ImmutableList.Builder<Rotor> rotors = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      String name = in.readUTF();
+      Rotor rotor = Rotor.getRotorByName(name);
+      if (rotor == null) {
+        throw new IOException("Unknown rotor " + name);
+      }
+      rotors.add(rotor);
+    }
+    return rotors.build();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Live counters for a key search. The worker threads add to them after every slice they search,
+ * so they can be read from another thread while the search is running, to show progress or an
+ * estimate of the time left.
+ */
+public class SearchStats {
+
+  /** The parts of a run that are timed separately. */
+  public enum Phase {
+    /** Building the key space and the lookup tables. */
+    SETUP,
+    /** Searching the keys, including any ring search. */
+    SEARCH,
+    /** Decoding the best keys into the results. */
+    MERGE
+  }
+
+  private final long totalKeys;
+  private final AtomicLong keysEvaluated = new AtomicLong();
+  private final AtomicLong keysPruned = new AtomicLong();
+  private final AtomicLong keysRejectedByCrib = new AtomicLong();
+  private final AtomicLong charactersDecoded = new AtomicLong();
+  private final AtomicLong keysResumed = new AtomicLong();
+  // Sorted by thread name for printing.
+  private final ConcurrentMap<String, ThreadCounts> threads =
+      new ConcurrentSkipListMap<String, ThreadCounts>();
+  private final Map<Phase, Long> phaseNanos = Maps.newEnumMap(Phase.class);
+  private volatile long startNanos;
+  private volatile long endNanos;
+  private volatile String stoppedBy;
+
+  /** @param totalKeys the number of keys the search will try */
+  public SearchStats(long totalKeys) {
+    this.totalKeys = totalKeys;
+  }
+
+  void start() {
+    startNanos = System.nanoTime();
+    endNanos = 0;
+  }
+
+  void finish() {
+    endNanos = System.nanoTime();
+  }
+
+  /** Adds the counts for a part of the key space searched by the current thread. */
+  void add(long evaluated, long pruned, long rejectedByCrib, long characters, long nanos) {
+    addTotals(evaluated, pruned, rejectedByCrib, characters);
+    String name = Thread.currentThread().getName();
+    ThreadCounts counts = threads.get(name);
+    if (counts == null) {
+      threads.putIfAbsent(name, new ThreadCounts());
+      counts = threads.get(name);
+    }
+    counts.keys.addAndGet(evaluated);
+    counts.nanos.addAndGet(nanos);
+  }
+
+  /** Adds counts that weren't measured per thread. */
+  void addTotals(long evaluated, long pruned, long rejectedByCrib, long characters) {
+    keysEvaluated.addAndGet(evaluated);
+    keysPruned.addAndGet(pruned);
+    keysRejectedByCrib.addAndGet(rejectedByCrib);
+    charactersDecoded.addAndGet(characters);
+  }
+
+  /** Counts keys searched before the search was resumed from a checkpoint. */
+  void addResumed(long keys) {
+    keysResumed.addAndGet(keys);
+  }
+
+  /** Records that the search stopped before trying every key, because of reason. */
+  void setStoppedBy(String reason) {
+    stoppedBy = reason;
+  }
+
+  synchronized void setPhaseNanos(Phase phase, long nanos) {
+    phaseNanos.put(phase, nanos);
+  }
+
+  public long getTotalKeys() {
+    return totalKeys;
+  }
+
+  /** The number of keys tried so far. */
+  public long getKeysEvaluated() {
+    return keysEvaluated.get();
+  }
+
+  /** The number of keys given up on before decoding the whole message. */
+  public long getKeysPruned() {
+    return keysPruned.get();
+  }
+
+  /** The number of keys rejected after decoding only the letters under the crib. */
+  public long getKeysRejectedByCrib() {
+    return keysRejectedByCrib.get();
+  }
+
+  /** The number of letters decoded so far, over all keys. */
+  public long getCharactersDecoded() {
+    return charactersDecoded.get();
+  }
+
+  /** The number of keys skipped because a checkpoint had them as searched already. */
+  public long getKeysResumed() {
+    return keysResumed.get();
+  }
+
+  /**
+   * Why the search stopped before trying every key, such as the stop criterion that was met, or
+   * null if it didn't.
+   */
+  public String getStoppedBy() {
+    return stoppedBy;
+  }
+
+  /** The fraction of the keys tried so far, including resumed ones, from 0 to 1. */
+  public double getProgress() {
+    return totalKeys == 0
+        ? 1.0 : Math.min(1.0, (double) (getKeysEvaluated() + getKeysResumed()) / totalKeys);
+  }
+
+  /** The time since the search started, up to when it finished. */
+  public long getElapsedNanos() {
+    long start = startNanos;
+    if (start == 0) {
+      return 0;
+    }
+    long end = endNanos;
+    return (end == 0 ? System.nanoTime() : end) - start;
+  }
+
+  /** Keys tried per second of wall clock time, over all threads. */
+  public double getKeysPerSecond() {
+    long nanos = getElapsedNanos();
+    return nanos == 0 ? 0.0 : getKeysEvaluated() * 1e9 / nanos;
+  }
+
+  /** The estimated seconds until every key is tried, -1 if there is no estimate yet. */
+  public long getEtaSeconds() {
+    double rate = getKeysPerSecond();
+    if (rate == 0.0) {
+      return -1;
+    }
+    return (long) Math.ceil(
+        Math.max(0, totalKeys - getKeysEvaluated() - getKeysResumed()) / rate);
+  }
+
+  /** Keys tried per second that each thread spent searching, by thread name. */
+  public Map<String, Double> getThreadKeysPerSecond() {
+    ImmutableMap.Builder<String, Double> rates = ImmutableMap.builder();
+    for (Map.Entry<String, ThreadCounts> entry : threads.entrySet()) {
+      long nanos = entry.getValue().nanos.get();
+      rates.put(entry.getKey(), nanos == 0 ? 0.0 : entry.getValue().keys.get() * 1e9 / nanos);
+    }
+    return rates.build();
+  }
+
+  /** The wall clock time spent in phase, 0 if it didn't run. */
+  public synchronized long getPhaseNanos(Phase phase) {
+    Long nanos = phaseNanos.get(phase);
+    return nanos == null ? 0 : nanos;
+  }
+
+  /** A one line summary of the progress so far, for showing while the search runs. */
+  public String formatProgress() {
+    long eta = getEtaSeconds();
+    return String.format("%.1f%% of %d keys, %.0f keys/s, %s left", 100.0 * getProgress(),
+        totalKeys, getKeysPerSecond(), eta < 0 ? "unknown" : formatSeconds(eta));
+  }
+
+  /** A summary of the whole search, for showing after it finished. */
+  public String formatSummary() {
+    StringBuilder buf = new StringBuilder();
+    buf.append(String.format("Searched %d keys, decoding %d letters, in %.2fs (%.0f keys/s)\n",
+        getKeysEvaluated(), getCharactersDecoded(), getElapsedNanos() / 1e9,
+        getKeysPerSecond()));
+    if (stoppedBy != null) {
+      buf.append(String.format("Stopped early with %.1f%% of the keys searched: %s\n",
+          getProgress() * 100, stoppedBy));
+    }
+    buf.append(String.format("Setup %dms, search %dms, merge %dms\n",
+        TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(Phase.SETUP)),
+        TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(Phase.SEARCH)),
+        TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(Phase.MERGE))));
+    for (Map.Entry<String, Double> entry : getThreadKeysPerSecond().entrySet()) {
+      buf.append(String.format("  %s: %.0f keys/s\n", entry.getKey(), entry.getValue()));
+    }
+    return buf.toString();
+  }
+
+  private static String formatSeconds(long seconds) {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+
+  private static class ThreadCounts {
+    final AtomicLong keys = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ForkJoinPool;
+
+import org.theelements.collect.ScoredKeys;
+
+/**
+ * Searches leases of a key space for a SearchCoordinator until it has no more, see
+ * SearchCoordinator for the protocol. The tables and one KeySearch for the job are built once
+ * and every lease is searched with them on the worker's own pool, so the per-thread evaluators
+ * and the score a key has to beat carry over from lease to lease.
+ */
+final class SearchWorker {
+  private final ForkJoinPool pool;
+  private long keysSearched;
+
+  SearchWorker(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Connects to the coordinator, sends it token and searches leases until it is done, returns
+   * how many.
+   */
+  int run(String host, int port, String token) throws IOException {
+    Socket socket = new Socket(host, port);
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeUTF(token);
+      out.flush();
+      SearchJob job = SearchJob.read(in);
+      KeySpace keySpace = new KeySpace(job.getRotors(), job.getReflectors());
+      InnerPermutationCache innerPermutations =
+          InnerPermutationCache.build(job.getRotors(), job.getReflectors());
+      char[] message = job.getMessage().toCharArray();
+      KeySearch search = new KeySearch(keySpace, innerPermutations, message, job.getCrib(),
+          job.getScoringMethod().getScorer(), job.getNumResults());
+      search.setEngine(job.getEngine());
+
+      int leases = 0;
+      while (true) {
+        out.writeInt(SearchCoordinator.REQUEST);
+        out.flush();
+        int type = in.readInt();
+        if (type == SearchCoordinator.DONE) {
+          return leases;
+        } else if (type != SearchCoordinator.LEASE) {
+          throw new IOException("Unknown message " + type);
+        }
+        int lease = in.readInt();
+        long start = in.readLong();
+        long end = in.readLong();
+        double threshold = in.readDouble();
+        if (start < 0 || end > keySpace.size() || start >= end) {
+          throw new IOException("Bad lease " + start + "-" + end);
+        }
+
+        // Keys worse than the coordinator's K-th best can't make its results.
+        search.lowerThreshold(threshold);
+        ScoredKeys best = search.run(pool, start, end);
+        keysSearched = search.getCandidatesEvaluated();
+
+        // The search keeps the best keys of every lease, the ones from earlier leases were
+        // already sent.
+        int count = 0;
+        for (int i = 0; i < best.size(); i++) {
+          if (inLease(keySpace, best.getKey(i), start, end)) {
+            count++;
+          }
+        }
+        out.writeInt(SearchCoordinator.RESULT);
+        out.writeInt(lease);
+        out.writeInt(count);
+        for (int i = 0; i < best.size(); i++) {
+          if (inLease(keySpace, best.getKey(i), start, end)) {
+            out.writeDouble(best.getScore(i));
+            out.writeLong(best.getKey(i));
+          }
+        }
+        leases++;
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static boolean inLease(KeySpace keySpace, long key, long start, long end) {
+    long index = keySpace.getIndex(key);
+    return index >= start && index < end;
+  }
+
+  /** The number of keys this worker has searched. */
+  long getKeysSearched() {
+    return keysSearched;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * The order a search visits the slices of the key space in, see SlicePrioritizer.
+ */
+public enum SliceOrder {
+  /**
+   * No particular order, the key space is split between the threads as evenly as possible. This
+   * is the fastest way to search all of it.
+   */
+  INDEX,
+  /** Reflector B first, then C and A, and any wheel orders known to be common first. */
+  LIKELY,
+  /** The slices where a sample of start positions scores best first. */
+  PRESCORE
+}
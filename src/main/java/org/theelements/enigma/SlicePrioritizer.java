@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+/**
+ * Chooses the order a KeySearch searches the slices of a key space in, see KeySpace. Searching
+ * the most likely slices first means a search that is stopped early, by a time budget or a
+ * StopCriterion, has usually already found the key.
+ */
+interface SlicePrioritizer {
+
+  /** Returns every slice of keySpace exactly once, the first one is searched first. */
+  int[] prioritize(KeySpace keySpace);
+}
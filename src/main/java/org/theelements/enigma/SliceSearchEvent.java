@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for searching part of one (rotor order, reflector) slice of the key
+ * space. Record with -XX:StartFlightRecording and look for org.theelements.enigma.SliceSearch.
+ */
+@Name("org.theelements.enigma.SliceSearch")
+@Label("Slice Search")
+@Category("Enigma")
+@Description("Keys of one rotor order and reflector searched by one thread")
+class SliceSearchEvent extends Event {
+  @Label("Rotor Order")
+  String rotorOrder;
+
+  @Label("Reflector")
+  String reflector;
+
+  @Label("First Position")
+  int firstPosition;
+
+  @Label("Keys Evaluated")
+  long keysEvaluated;
+
+  @Label("Keys Pruned")
+  long keysPruned;
+
+  @Label("Keys Rejected By Crib")
+  long keysRejectedByCrib;
+
+  @Label("Letters Decoded")
+  long charactersDecoded;
+}
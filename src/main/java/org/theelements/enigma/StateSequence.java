@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * The rotor positions at every key press, for every start position, in one array. Starting at
+ * any position the machine follows the same stepping cycle as every other start on that cycle,
+ * only from a different place, so the cycle is walked once and each start position becomes a
+ * window into it: the positions after press i + 1 from start are
+ * {@code getStates()[getStart(start) + i]}. The few start positions that double stepping never
+ * returns to get their own short walk.
+ *
+ * <p>States and start positions are packed as {@code (left * 26 + middle) * 26 + right}. Only
+ * the middle and right rotors decide the stepping, so a sequence is shared by every left rotor
+ * and reflector. Instances are immutable and shared by all threads. Only one sequence is kept
+ * for each pair of rotors, covering the longest length asked for so far, which also serves every
+ * shorter length.
+ */
+final class StateSequence {
+  private static final Map<List<Rotor>, StateSequence> cache = Maps.newHashMap();
+
+  private final int length;
+  private final int[] starts = new int[KeySpace.POSITIONS];
+  private final int[] states;
+  // Each state split into the right rotor's position times 26 and the rest, the bases for the
+  // right rotor's flat tables and the InnerPermutationCache table.
+  private final int[] rightBases;
+  private final int[] innerBases;
+
+  private StateSequence(SteppingCycle stepping, int length) {
+    this.length = length;
+    int[] next = new int[KeySpace.POSITIONS];
+    for (int state = 0; state < KeySpace.POSITIONS; state++) {
+      int inner = state % SteppingCycle.STATES;
+      int left = (state / SteppingCycle.STATES + stepping.carry(inner)) % 26;
+      next[state] = left * SteppingCycle.STATES + stepping.successor(inner);
+    }
+
+    // Find the cycles, then lay each out followed by enough of its start to cover a whole window
+    // beginning at its last state.
+    int[] cycleIndex = new int[KeySpace.POSITIONS];
+    Arrays.fill(cycleIndex, -1);
+    int[] visited = new int[KeySpace.POSITIONS];
+    int[] walk = new int[KeySpace.POSITIONS];
+    int[] sequence = new int[KeySpace.POSITIONS + length];
+    int size = 0;
+    for (int start = 0; start < KeySpace.POSITIONS; start++) {
+      int state = start;
+      while (visited[state] == 0) {
+        visited[state] = start + 1;
+        state = next[state];
+      }
+      if (visited[state] != start + 1) {
+        continue;
+      }
+      int cycleLength = 0;
+      int member = state;
+      do {
+        walk[cycleLength] = member;
+        cycleIndex[member] = cycleLength++;
+        member = next[member];
+      } while (member != state);
+
+      sequence = ensureCapacity(sequence, size + cycleLength + length);
+      for (int i = 0; i < cycleLength; i++) {
+        starts[walk[i]] = size + i + 1;
+      }
+      for (int i = 0; i < cycleLength + length; i++) {
+        sequence[size + i] = walk[i % cycleLength];
+      }
+      size += cycleLength + length;
+    }
+
+    // The rest are the tails leading into the cycles, walked out in full.
+    for (int start = 0; start < KeySpace.POSITIONS; start++) {
+      if (cycleIndex[start] >= 0) {
+        continue;
+      }
+      sequence = ensureCapacity(sequence, size + length);
+      starts[start] = size;
+      int state = start;
+      for (int i = 0; i < length; i++) {
+        state = next[state];
+        sequence[size++] = state;
+      }
+    }
+    states = Arrays.copyOf(sequence, size);
+    rightBases = new int[size];
+    innerBases = new int[size];
+    for (int i = 0; i < size; i++) {
+      int right = states[i] % 26;
+      rightBases[i] = right * 26;
+      innerBases[i] = states[i] - right;
+    }
+  }
+
+  /**
+   * Returns a sequence for the given middle and right rotors covering at least length key
+   * presses. It is built the first time it is asked for, and again, replacing the old one, when
+   * a longer length is asked for.
+   */
+  static synchronized StateSequence get(Rotor middle, Rotor right, int length) {
+    List<Rotor> key = ImmutableList.of(middle, right);
+    StateSequence result = cache.get(key);
+    if (result == null || result.length < length) {
+      result = new StateSequence(SteppingCycle.get(middle, right), length);
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  /** The number of key presses each start position's window covers. */
+  int getLength() {
+    return length;
+  }
+
+  /** Where the window for the packed start position begins in getStates(). */
+  int getStart(int start) {
+    return starts[start];
+  }
+
+  /** The packed positions, the returned array must not be modified. */
+  int[] getStates() {
+    return states;
+  }
+
+  /** getStates() with each entry as {@code right * 26}, must not be modified. */
+  int[] getRightBases() {
+    return rightBases;
+  }
+
+  /** getStates() with each entry as {@code (left * 26 + middle) * 26}, must not be modified. */
+  int[] getInnerBases() {
+    return innerBases;
+  }
+
+  private static int[] ensureCapacity(int[] array, int capacity) {
+    return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity,
+        array.length * 2));
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Jumps the rotor positions ahead by any number of key presses in constant time. How the middle
+ * and right rotors move only depends on their own positions, so the 676 (middle, right) states
+ * form a graph where every state has one successor. Following it from any state leads, after a
+ * short tail of states that double stepping skips, into a cycle. Each cycle is stored with a
+ * running count of how often the left rotor moved, so n presses ahead is a division and a few
+ * lookups.
+ *
+ * <p>States are packed as {@code middlePosition * 26 + rightPosition}. Instances are immutable
+ * and shared by all threads.
+ */
+final class SteppingCycle {
+  static final int STATES = 26 * 26;
+
+  private static final Map<List<Rotor>, SteppingCycle> cache = Maps.newHashMap();
+
+  private final int[] next = new int[STATES];
+  private final int[] carries = new int[STATES];
+
+  // For states on a cycle, the cycle and the state's index in it. Tail states have a negative
+  // cycle and tailLength presses before they reach one.
+  private final int[] cycle = new int[STATES];
+  private final int[] cycleIndex = new int[STATES];
+  private final int[] tailLength = new int[STATES];
+
+  // For each cycle, its states in order and the number of left rotor moves before each index,
+  // with one extra entry holding the total for the whole cycle.
+  private final int[][] cycleStates;
+  private final long[][] cycleCarries;
+
+  private SteppingCycle(Rotor middle, Rotor right) {
+    for (int state = 0; state < STATES; state++) {
+      step(middle, right, state);
+    }
+
+    Arrays.fill(cycle, -1);
+    int[] visited = new int[STATES];
+    List<int[]> found = Lists.newArrayList();
+    for (int start = 0; start < STATES; start++) {
+      if (visited[start] != 0) {
+        continue;
+      }
+      // Walk until reaching a state seen before, marking this walk with start + 1.
+      int state = start;
+      while (visited[state] == 0) {
+        visited[state] = start + 1;
+        state = next[state];
+      }
+      if (visited[state] == start + 1) {
+        // A new cycle starting at state.
+        int length = 0;
+        int member = state;
+        do {
+          length++;
+          member = next[member];
+        } while (member != state);
+        int[] members = new int[length];
+        for (int i = 0; i < length; i++) {
+          members[i] = member;
+          cycle[member] = found.size();
+          cycleIndex[member] = i;
+          member = next[member];
+        }
+        found.add(members);
+      }
+    }
+
+    cycleStates = found.toArray(new int[found.size()][]);
+    cycleCarries = new long[cycleStates.length][];
+    for (int c = 0; c < cycleStates.length; c++) {
+      int[] members = cycleStates[c];
+      long[] running = new long[members.length + 1];
+      for (int i = 0; i < members.length; i++) {
+        running[i + 1] = running[i] + carries[members[i]];
+      }
+      cycleCarries[c] = running;
+    }
+
+    for (int state = 0; state < STATES; state++) {
+      int length = 0;
+      for (int member = state; cycle[member] < 0; member = next[member]) {
+        length++;
+      }
+      tailLength[state] = length;
+    }
+  }
+
+  /**
+   * Returns the cycles for the given middle and right rotors, built the first time they are
+   * asked for.
+   */
+  static synchronized SteppingCycle get(Rotor middle, Rotor right) {
+    List<Rotor> key = ImmutableList.of(middle, right);
+    SteppingCycle result = cache.get(key);
+    if (result == null) {
+      result = new SteppingCycle(middle, right);
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  /** The (middle, right) state after one key press. */
+  int successor(int state) {
+    return next[state];
+  }
+
+  /** The number of times the left rotor moves on the next key press from state, 0 or 1. */
+  int carry(int state) {
+    return carries[state];
+  }
+
+  /** The (middle, right) state after presses key presses. */
+  int state(int state, long presses) {
+    while (presses > 0 && cycle[state] < 0) {
+      state = next[state];
+      presses--;
+    }
+    if (presses == 0) {
+      return state;
+    }
+    int[] members = cycleStates[cycle[state]];
+    return members[(int) ((cycleIndex[state] + presses) % members.length)];
+  }
+
+  /** The number of times the left rotor moves during the next presses key presses. */
+  long leftMoves(int state, long presses) {
+    long moves = 0;
+    while (presses > 0 && cycle[state] < 0) {
+      moves += carries[state];
+      state = next[state];
+      presses--;
+    }
+    if (presses == 0) {
+      return moves;
+    }
+    int c = cycle[state];
+    int length = cycleStates[c].length;
+    long[] running = cycleCarries[c];
+    int index = cycleIndex[state];
+    moves += presses / length * running[length];
+    int end = index + (int) (presses % length);
+    if (end <= length) {
+      return moves + running[end] - running[index];
+    }
+    return moves + running[length] - running[index] + running[end - length];
+  }
+
+  /**
+   * Returns every state's position after 0 to maxPresses presses as one flat table, the entry for
+   * n presses from state is at {@code state * (maxPresses + 1) + n} and holds
+   * {@code leftMoves(state, n) * STATES + state(state, n)}. Worth building when the same few
+   * jumps are made from many states.
+   */
+  int[] jumpTable(int maxPresses) {
+    int stride = maxPresses + 1;
+    int[] table = new int[STATES * stride];
+    for (int state = 0; state < STATES; state++) {
+      int current = state;
+      int moves = 0;
+      for (int presses = 0; presses <= maxPresses; presses++) {
+        table[state * stride + presses] = moves * STATES + current;
+        moves += carries[current];
+        current = next[current];
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Works out the successor of state with exactly the same turnover checks as
+   * EnigmaMachine.moveRotors(), including their quirks.
+   */
+  private void step(Rotor middle, Rotor right, int state) {
+    int position2 = state / 26;
+    int position3 = state % 26;
+    int moves = 0;
+
+    position3 = position3 == 25 ? 0 : position3 + 1;
+    if (right.turnover(position3)) {
+      position2 = position2 == 25 ? 0 : position2 + 1;
+      moves += middle.turnover(position2) ? 1 : 0;
+    }
+    if (right.turnover(position3 - 1) && middle.turnover(position2 + 1)) {
+      position2 = position2 == 25 ? 0 : position2 + 1;
+      moves += middle.turnover(position2) ? 1 : 0;
+    }
+
+    next[state] = position2 * 26 + position3;
+    carries[state] = moves;
+  }
+}
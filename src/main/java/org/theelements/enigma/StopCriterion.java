@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import org.theelements.collect.ScoredKeys;
+
+/**
+ * Decides when a key search has found a key good enough to stop looking. Every condition that
+ * is set must hold: the best score is at most a given score, it beats the runner-up by at least a
+ * margin, or the best key decodes the crib. Scores are smaller is better, and include the crib
+ * bonus, see CandidateEvaluator.evaluate().
+ */
+class StopCriterion {
+  private double score = Double.NaN;
+  private double margin = Double.NaN;
+  private boolean cribMatch;
+
+  /** Stops once the best score is at most score. */
+  StopCriterion setScore(double score) {
+    this.score = score;
+    return this;
+  }
+
+  /**
+   * Stops once the best score is at least margin smaller than the second best, so the search
+   * needs to keep two or more results.
+   */
+  StopCriterion setMargin(double margin) {
+    this.margin = margin;
+    return this;
+  }
+
+  /** Stops once the best key decodes a message that contains the crib. */
+  StopCriterion setCribMatch(boolean cribMatch) {
+    this.cribMatch = cribMatch;
+    return this;
+  }
+
+  /** Whether any condition is set, a criterion with none never stops a search. */
+  boolean isSet() {
+    return !Double.isNaN(score) || !Double.isNaN(margin) || cribMatch;
+  }
+
+  boolean needsCrib() {
+    return cribMatch;
+  }
+
+  /**
+   * Whether the search can stop with the best keys found so far, sorted from best to worst.
+   * bestHasCrib is only used when needsCrib().
+   */
+  boolean isMet(ScoredKeys best, boolean bestHasCrib) {
+    if (!isSet() || best.size() == 0) {
+      return false;
+    }
+    if (!Double.isNaN(score) && best.getScore(0) > score) {
+      return false;
+    }
+    if (!Double.isNaN(margin)
+        && (best.size() < 2 || best.getScore(1) - best.getScore(0) < margin)) {
+      return false;
+    }
+    return !cribMatch || bestHasCrib;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    if (!Double.isNaN(score)) {
+      buf.append("score <= ").append(score);
+    }
+    if (!Double.isNaN(margin)) {
+      buf.append(buf.length() == 0 ? "" : ", ").append("margin >= ").append(margin);
+    }
+    if (cribMatch) {
+      buf.append(buf.length() == 0 ? "" : ", ").append("crib match");
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,70 @@
+package org.theelements.collect;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedScoreHeapTest {
+
+  private BoundedScoreHeap heap;
+
+  @Before
+  public void setUp() throws Exception {
+    heap = new BoundedScoreHeap(3);
+  }
+
+  public void assertKeys(ScoredKeys sorted, long... expected) {
+    Assert.assertEquals(expected.length, sorted.size());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], sorted.getKey(i));
+    }
+  }
+
+  @Test
+  public void testOffer() {
+    Assert.assertTrue(heap.offer(3.0, 3));
+    Assert.assertTrue(heap.offer(13.0, 13));
+    Assert.assertTrue(heap.offer(1.0, 1));
+    Assert.assertEquals(13.0, heap.threshold(), 0.0);
+    Assert.assertTrue(heap.offer(8.0, 8));
+    Assert.assertFalse(heap.offer(25.0, 25));
+    Assert.assertTrue(heap.offer(7.0, 7));
+
+    Assert.assertEquals(3, heap.size());
+    Assert.assertEquals(7.0, heap.threshold(), 0.0);
+    assertKeys(heap.toSorted(), 1, 3, 7);
+  }
+
+  @Test
+  public void testTiesKeepSmallerKeys() {
+    heap.offer(1.0, 9);
+    heap.offer(1.0, 5);
+    heap.offer(1.0, 7);
+    heap.offer(1.0, 2);
+    heap.offer(1.0, 8);
+
+    assertKeys(heap.toSorted(), 2, 5, 7);
+  }
+
+  @Test
+  public void testThresholdWithRoom() {
+    Assert.assertEquals(Double.POSITIVE_INFINITY, heap.threshold(), 0.0);
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, new BoundedScoreHeap(0).threshold(), 0.0);
+    Assert.assertFalse(new BoundedScoreHeap(0).offer(1.0, 1));
+  }
+
+  @Test
+  public void testLargeCapacity() {
+    BoundedScoreHeap large = new BoundedScoreHeap(10000);
+    for (int i = 100000; i > 0; i--) {
+      large.offer((i * 7919) % 100003, i);
+    }
+
+    ScoredKeys sorted = large.toSorted();
+    Assert.assertEquals(10000, sorted.size());
+    for (int i = 1; i < sorted.size(); i++) {
+      Assert.assertTrue(sorted.getScore(i - 1) <= sorted.getScore(i));
+    }
+  }
+
+}
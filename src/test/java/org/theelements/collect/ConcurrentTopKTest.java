@@ -0,0 +1,47 @@
+package org.theelements.collect;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class ConcurrentTopKTest {
+
+  @Test
+  public void testMergeFromManyThreads() throws Exception {
+    final ConcurrentTopK topK = new ConcurrentTopK(5);
+    List<Thread> threads = Lists.newArrayList();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          BoundedScoreHeap local = topK.newLocalHeap();
+          for (int i = offset; i < 10000; i += 4) {
+            local.offer(i, i);
+            if (i % 100 == offset) {
+              topK.merge(local);
+            }
+          }
+          topK.merge(local);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    ScoredKeys sorted = topK.getSorted();
+    Assert.assertEquals(5, sorted.size());
+    for (int i = 0; i < 5; i++) {
+      Assert.assertEquals(i, sorted.getKey(i));
+    }
+    Assert.assertEquals(4.0, topK.getThreshold(), 0.0);
+  }
+
+}
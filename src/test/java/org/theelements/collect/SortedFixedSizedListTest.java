@@ -49,4 +49,15 @@ public class SortedFixedSizedListTest {
     assertEquals(list, 25, 13, 8);
   }
 
+  @Test
+  public void testMaybeAddWithTies() {
+    list.maybeAdd(5);
+    list.maybeAdd(3);
+    list.maybeAdd(3);
+    list.maybeAdd(4);
+
+    Assert.assertEquals(3, list.size());
+    assertEquals(list, 5, 4, 3);
+  }
+
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.theelements.enigma.CrackingServer.Job;
+import org.theelements.enigma.CrackingServer.Status;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+public class CrackingServerTest {
+
+  private CrackingServer server;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new CrackingServer(2, KeySpace.POSITIONS);
+    port = server.start(0);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testCrackOverHttp() throws Exception {
+    String id = request("POST", "/jobs", "message="
+        + "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        + "&rotors=1,2,3&reflectors=B&results=1", 202).trim();
+
+    String response = request("GET", "/jobs/" + id + "?wait=60", null, 200);
+    Assert.assertTrue(response, response.startsWith("STATUS: DONE"));
+    Assert.assertTrue(response, response.contains(
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT"));
+
+    request("GET", "/jobs/12345", null, 404);
+    request("POST", "/jobs", "message=NOT+LETTERS", 400);
+    request("POST", "/jobs", "message=ZTQB&results=" + (CrackingServer.MAX_RESULTS + 1), 400);
+  }
+
+  @Test
+  public void testShortJobsOvertakeLongOnes() throws Exception {
+    char[] message = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    Job longJob = server.submit(message, null, Lists.newArrayList(Rotor.ROTOR_1_1930,
+        Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938),
+        Lists.newArrayList(Rotor.REFLECTOR_A, Rotor.REFLECTOR_B, Rotor.REFLECTOR_C),
+        ScoringMethod.FREQUENCY, 3);
+    Job shortJob = server.submit(message, null,
+        Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930),
+        Lists.newArrayList(Rotor.REFLECTOR_B), ScoringMethod.FREQUENCY, 3);
+
+    shortJob.await(60000);
+    Assert.assertEquals(Status.DONE, shortJob.getStatus());
+    Assert.assertEquals(Status.RUNNING, longJob.getStatus());
+    Assert.assertTrue(longJob.getSearched() < longJob.size());
+
+    String response = request("DELETE", "/jobs/" + longJob.id, null, 200);
+    Assert.assertTrue(response, response.startsWith("STATUS: CANCELLED"));
+    long searched = longJob.getSearched();
+    Assert.assertTrue(longJob.search.isStopped());
+    Thread.sleep(200);
+    // The chunk that was running when it was cancelled is abandoned.
+    Assert.assertEquals(searched, longJob.getSearched());
+  }
+
+  @Test
+  public void testFinishedJobsAreEvicted() throws Exception {
+    CrackingServer small = new CrackingServer(1, KeySpace.POSITIONS, 3600, 1);
+    small.start(0);
+    try {
+      char[] message = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+      Job first = small.submit(message, null,
+          Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930),
+          Lists.newArrayList(Rotor.REFLECTOR_B), ScoringMethod.FREQUENCY, 3);
+      first.await(60000);
+      Assert.assertEquals(Status.DONE, first.getStatus());
+      Assert.assertTrue(first.getFinishedAt() > 0);
+
+      Job second = small.submit(message, null,
+          Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930),
+          Lists.newArrayList(Rotor.REFLECTOR_B), ScoringMethod.FREQUENCY, 3);
+      // Running jobs are never dropped.
+      Assert.assertSame(first, small.getJob(first.id));
+      Assert.assertSame(second, small.getJob(second.id));
+      second.cancel();
+
+      small.evictFinishedJobs();
+      Assert.assertNull(small.getJob(first.id));
+      Assert.assertSame(second, small.getJob(second.id));
+    } finally {
+      small.stop();
+    }
+
+    CrackingServer expiring = new CrackingServer(1, KeySpace.POSITIONS, 0, 1000);
+    expiring.start(0);
+    try {
+      Job job = expiring.submit("ABC".toCharArray(), null,
+          Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930),
+          Lists.newArrayList(Rotor.REFLECTOR_B), ScoringMethod.FREQUENCY, 1);
+      job.cancel();
+      expiring.evictFinishedJobs();
+      Assert.assertNull(expiring.getJob(job.id));
+    } finally {
+      expiring.stop();
+    }
+  }
+
+  @Test
+  public void testFullQueueIsRefused() throws Exception {
+    CrackingServer small = new CrackingServer(1, KeySpace.POSITIONS, 1);
+    port = small.start(0);
+    try {
+      String message = "message=MTVZLRUGJUPYISBINSDHPNXNJVYTX";
+      String id = request("POST", "/jobs", message, 202).trim();
+      request("POST", "/jobs", message + "&rotors=1,2,3&reflectors=B", 503);
+
+      small.getJob(Long.parseLong(id)).cancel();
+      request("POST", "/jobs", message + "&rotors=1,2,3&reflectors=B", 202);
+    } finally {
+      small.stop();
+    }
+  }
+
+  @Test
+  public void testDefaultChunkSize() {
+    Assert.assertEquals(KeySpace.POSITIONS, CrackingServer.defaultChunkSize(1));
+    Assert.assertEquals(64 * 8 * KeyRangeTask.MIN_RANGE, CrackingServer.defaultChunkSize(64));
+  }
+
+  private String request(String method, String path, String body, int expectedCode)
+      throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      OutputStream out = connection.getOutputStream();
+      out.write(body.getBytes(Charsets.UTF_8));
+      out.close();
+    }
+    Assert.assertEquals(expectedCode, connection.getResponseCode());
+    InputStream in = expectedCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+    try {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+}
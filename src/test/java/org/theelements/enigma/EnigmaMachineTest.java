@@ -16,14 +16,31 @@
 
 package org.theelements.enigma;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
 public class EnigmaMachineTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private EnigmaMachine machine;
   private EnigmaMachine machine2;
   private EnigmaMachine machine3;
@@ -49,6 +66,23 @@ public class EnigmaMachineTest {
     Assert.assertEquals(1, machine.getOutputIndex(Rotor.ROTOR_3_1930, 1, 4, true));
   }
 
+  @Test
+  public void testCompiledTablesMatchGetOutputIndex() {
+    Rotor[] rotors = {Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930,
+        Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938, Rotor.ROTOR_6, Rotor.REFLECTOR_A,
+        Rotor.REFLECTOR_B, Rotor.REFLECTOR_C};
+    for (Rotor rotor : rotors) {
+      for (int offset = 0; offset < 26; offset++) {
+        for (int input = 0; input < 26; input++) {
+          Assert.assertEquals(machine.getOutputIndex(rotor, offset, input, false),
+              rotor.getForwardTables()[offset][input]);
+          Assert.assertEquals(machine.getOutputIndex(rotor, offset, input, true),
+              rotor.getReverseTables()[offset][input]);
+        }
+      }
+    }
+  }
+
   @Test
   public void testMoveRotors() {
     assertArrayEquals(new int[] {0, 0, 1}, machine.moveRotorsWithResult());
@@ -77,6 +111,174 @@ public class EnigmaMachineTest {
     Assert.assertEquals('R', machine.step('E'));
   }
 
+  @Test
+  public void testStepIndex() {
+    Assert.assertEquals('B' - 'A', machine.stepIndex('A' - 'A'));
+    Assert.assertEquals('H' - 'A', machine.stepIndex('P' - 'A'));
+    Assert.assertEquals('S' - 'A', machine.stepIndex('P' - 'A'));
+  }
+
+  @Test
+  public void testStepWithInnerPermutationCache() {
+    List<Rotor> rotors = Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930,
+        Rotor.ROTOR_3_1930);
+    InnerPermutationCache cache =
+        InnerPermutationCache.build(rotors, Lists.newArrayList(Rotor.REFLECTOR_B));
+    EnigmaMachine cached = new EnigmaMachine(new EnigmaMachineConfig('V', 'P', 'C',
+        Rotor.ROTOR_3_1930, Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.REFLECTOR_B, cache));
+
+    // Long enough for the middle and left rotors to move several times.
+    for (int i = 0; i < 2000; i++) {
+      int input = i % 26;
+      Assert.assertEquals(machine3.stepIndex(input), cached.stepIndex(input));
+    }
+  }
+
+  @Test
+  public void testReset() {
+    EnigmaMachine reused = new EnigmaMachine();
+    reused.reset(new EnigmaMachineConfig('V', 'P', 'C', Rotor.ROTOR_3_1930, Rotor.ROTOR_1_1930,
+        Rotor.ROTOR_2_1930, Rotor.REFLECTOR_B));
+    Assert.assertEquals('K', reused.step('F'));
+    Assert.assertEquals('V', reused.step('O'));
+
+    reused.reset(new EnigmaMachineConfig('A', 'A', 'A', Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930,
+        Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B));
+    Assert.assertEquals('B', reused.step('A'));
+    Assert.assertEquals('H', reused.step('P'));
+  }
+
+  @Test
+  public void testStepWithRings() {
+    EnigmaMachine ringed = new EnigmaMachine(new EnigmaMachineConfig('A', 'A', 'A',
+        Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B)
+        .setRings('B', 'B', 'B'));
+    Assert.assertEquals('E', ringed.step('A'));
+    Assert.assertEquals('W', ringed.step('A'));
+    Assert.assertEquals('T', ringed.step('A'));
+    Assert.assertEquals('Y', ringed.step('A'));
+    Assert.assertEquals('X', ringed.step('A'));
+  }
+
+  @Test
+  public void testSteppingCycleMatchesMoveRotors() {
+    Rotor[] rotors = {Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930,
+        Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938, Rotor.ROTOR_6};
+    for (Rotor middle : rotors) {
+      for (Rotor right : rotors) {
+        if (middle == right) {
+          continue;
+        }
+        SteppingCycle cycle = SteppingCycle.get(middle, right);
+        for (int state = 0; state < SteppingCycle.STATES; state += 7) {
+          EnigmaMachine stepped = new EnigmaMachine();
+          stepped.setRotors(Rotor.ROTOR_1_1930, middle, right, Rotor.REFLECTOR_B, null);
+          stepped.setPositions(0, state / 26, state % 26);
+          for (int presses = 1; presses <= 2000; presses++) {
+            int[] positions = stepped.moveRotorsWithResult();
+            Assert.assertEquals(positions[1] * 26 + positions[2], cycle.state(state, presses));
+            Assert.assertEquals(positions[0],
+                cycle.leftMoves(state, presses) % 26);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSeekMatchesStepRotors() {
+    Rotor[][] orders = {{Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930},
+        {Rotor.ROTOR_3_1930, Rotor.ROTOR_6, Rotor.ROTOR_5_1938},
+        {Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938, Rotor.ROTOR_6}};
+    // Gaps round the middle rotor's turnovers, the double step and many whole cycles.
+    long[] gaps = {0, 1, 2, 25, 26, 27, 650, 677, 17576, 100003, 1234567};
+    for (Rotor[] order : orders) {
+      for (char key : new char[] {'A', 'D', 'E', 'Q', 'V'}) {
+        EnigmaMachineConfig config = new EnigmaMachineConfig('X', key, (char) (key + 1),
+            order[0], order[1], order[2], Rotor.REFLECTOR_B)
+            .setRings('C', 'Z', 'F').setPlugboard(Plugboard.parse("AB CD"));
+        EnigmaMachine stepped = new EnigmaMachine(config);
+        long presses = 0;
+        for (long gap : gaps) {
+          for (long i = 0; i < gap; i++) {
+            stepped.stepRotors();
+          }
+          presses += gap;
+          EnigmaMachine seeked = new EnigmaMachine(config);
+          seeked.seek(presses);
+          for (char c = 'A'; c <= 'Z'; c++) {
+            Assert.assertEquals(stepped.step(c), seeked.step(c));
+          }
+          presses += 26;
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStateSequenceMatchesMoveRotors() {
+    Rotor[][] pairs = {{Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930},
+        {Rotor.ROTOR_5_1938, Rotor.ROTOR_1_1930}, {Rotor.ROTOR_6, Rotor.ROTOR_4_1938}};
+    for (Rotor[] pair : pairs) {
+      StateSequence sequence = StateSequence.get(pair[0], pair[1], 700);
+      int[] states = sequence.getStates();
+      for (int start = 0; start < KeySpace.POSITIONS; start += 3) {
+        EnigmaMachine stepped = new EnigmaMachine();
+        stepped.setRotors(Rotor.ROTOR_1_1930, pair[0], pair[1], Rotor.REFLECTOR_B, null);
+        stepped.setPositions(start / 676, start / 26 % 26, start % 26);
+        int index = sequence.getStart(start);
+        for (int press = 0; press < 700; press++) {
+          int[] positions = stepped.moveRotorsWithResult();
+          Assert.assertEquals((positions[0] * 26 + positions[1]) * 26 + positions[2],
+              states[index + press]);
+        }
+      }
+    }
+
+    // One sequence per pair of rotors, serving every shorter length.
+    StateSequence sequence = StateSequence.get(Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, 700);
+    Assert.assertSame(sequence,
+        StateSequence.get(Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, 80));
+    StateSequence longer = StateSequence.get(Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, 900);
+    Assert.assertEquals(900, longer.getLength());
+    Assert.assertSame(longer, StateSequence.get(Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, 700));
+  }
+
+  @Test
+  public void testAtlasMatchesRotorTables() throws Exception {
+    File file = temporaryFolder.newFile("test.atlas");
+    PermutationAtlas.generate(file, Arrays.asList("1", "2", "3"), Arrays.asList("B"));
+    PermutationAtlas atlas = PermutationAtlas.open(file);
+    Assert.assertEquals(6, atlas.getSliceCount());
+
+    EnigmaMachineConfig config = new EnigmaMachineConfig('Q', 'E', 'V', Rotor.ROTOR_3_1930,
+        Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.REFLECTOR_B).setRings('A', 'F', 'T');
+    EnigmaMachine expected = new EnigmaMachine(config);
+    EnigmaMachine mapped = new EnigmaMachine();
+    mapped.setAtlas(atlas);
+    mapped.reset(config);
+    for (int i = 0; i < 2000; i++) {
+      Assert.assertEquals(expected.step((char) ('A' + i % 26)), mapped.step((char) ('A' + i % 26)));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testStaleAtlasIsRejected() throws Exception {
+    File file = temporaryFolder.newFile("stale.atlas");
+    PermutationAtlas.generate(file, Arrays.asList("1", "2", "3"), Arrays.asList("B"));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // The checksum follows the magic number and version.
+      raf.seek(8);
+      long checksum = raf.readLong();
+      raf.seek(8);
+      raf.writeLong(checksum + 1);
+    } finally {
+      raf.close();
+    }
+    PermutationAtlas.open(file);
+  }
+
   @Test
   public void testStepWithTurnover() {
     Assert.assertEquals('W', machine2.step('O'));
@@ -98,4 +300,78 @@ public class EnigmaMachineTest {
     Assert.assertEquals('Y', machine3.step('L'));
     Assert.assertEquals('W', machine3.step('L'));
   }
+
+  @Test
+  public void testCodecMatchesStep() throws Exception {
+    // Long enough for the rotors to go round their whole cycle.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1500; i++) {
+      text.append("The quick brown fox, number ").append(i).append(", JUMPS.\n");
+    }
+    byte[] plain = text.toString().getBytes(Charsets.US_ASCII);
+
+    StringBuilder expected = new StringBuilder();
+    for (char c : text.toString().toCharArray()) {
+      if (c >= 'A' && c <= 'Z') {
+        expected.append(machine2.step(c));
+      } else if (c >= 'a' && c <= 'z') {
+        expected.append(Character.toLowerCase(machine2.step(Character.toUpperCase(c))));
+      } else {
+        expected.append(c);
+      }
+    }
+
+    // A small buffer, so the text crosses many buffer boundaries.
+    EnigmaCodec codec = new EnigmaCodec(config('A', 'D', 'U'), 7);
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    Assert.assertEquals(plain.length, codec.transform(
+        Channels.newChannel(new ByteArrayInputStream(plain)), Channels.newChannel(encrypted)));
+    Assert.assertEquals(expected.toString(),
+        new String(encrypted.toByteArray(), Charsets.US_ASCII));
+
+    // Enigma is its own inverse, so the same key decrypts the mapped file.
+    File encryptedFile = temporaryFolder.newFile("encrypted.txt");
+    File decryptedFile = new File(temporaryFolder.getRoot(), "decrypted.txt");
+    Files.write(encrypted.toByteArray(), encryptedFile);
+    codec = new EnigmaCodec(config('A', 'D', 'U'));
+    Assert.assertEquals(plain.length, codec.transform(encryptedFile, decryptedFile));
+    Assert.assertArrayEquals(plain, Files.toByteArray(decryptedFile));
+  }
+
+  @Test
+  public void testParallelCodecMatchesSequential() throws Exception {
+    // Several chunks of mixed letters and other bytes, with an uneven tail.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3500000; i++) {
+      text.append("Line ").append(i).append(": pack my box with five dozen LIQUOR jugs.\n");
+    }
+    File plainFile = temporaryFolder.newFile("plain.txt");
+    Files.write(text.toString().getBytes(Charsets.US_ASCII), plainFile);
+
+    File sequentialFile = new File(temporaryFolder.getRoot(), "sequential.txt");
+    EnigmaCodec sequential = new EnigmaCodec(config('Q', 'D', 'U'));
+    sequential.transform(plainFile, sequentialFile);
+
+    File parallelFile = new File(temporaryFolder.getRoot(), "parallel.txt");
+    EnigmaCodec parallel = new EnigmaCodec(config('Q', 'D', 'U'));
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      Assert.assertEquals(plainFile.length(), parallel.transform(plainFile, parallelFile, pool));
+      Assert.assertArrayEquals(Files.toByteArray(sequentialFile),
+          Files.toByteArray(parallelFile));
+
+      // Both carry on from the same press into the next file.
+      sequential.transform(plainFile, sequentialFile);
+      parallel.transform(plainFile, parallelFile, pool);
+      Assert.assertArrayEquals(Files.toByteArray(sequentialFile),
+          Files.toByteArray(parallelFile));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static EnigmaMachineConfig config(char position1, char position2, char position3) {
+    return new EnigmaMachineConfig(position1, position2, position3, Rotor.ROTOR_1_1930,
+        Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B);
+  }
 }
@@ -16,18 +16,42 @@
 
 package org.theelements.enigma;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.Socket;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kohsuke.args4j.CmdLineParser;
+import org.theelements.collect.BoundedScoreHeap;
+import org.theelements.collect.ConcurrentTopK;
+import org.theelements.collect.ScoredKeys;
 import org.theelements.collect.SortedFixedSizedList;
+import org.theelements.enigma.EnigmaMachine.EnigmaMachineConfig;
 import org.theelements.enigma.EnigmaRunner.EnigmaResult;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 
 public class EnigmaRunnerTest {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private EnigmaRunner runner;
   List<Rotor> rotors;
   List<Rotor> reflectors;
@@ -50,6 +74,547 @@ public class EnigmaRunnerTest {
 
     SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted, rotors, reflectors, 3, 3);
     Assert.assertEquals(expected, results.iterator().next().getMessage());
+    Assert.assertEquals(17576L * 60 * 3, runner.getCandidatesEvaluated());
+    Assert.assertTrue(runner.getCandidatesPruned() > 0);
+  }
+
+  @Test
+  public void testCycleEngine() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    SortedFixedSizedList<EnigmaResult> expected = runner.run(encrypted, rotors, reflectors, 3, 3);
+
+    EnigmaRunner cycleRunner = new EnigmaRunner();
+    new CmdLineParser(cycleRunner).parseArgument("-engine", "CYCLE");
+    SortedFixedSizedList<EnigmaResult> results =
+        cycleRunner.run(encrypted, rotors, reflectors, 3, 3);
+    Assert.assertEquals(Lists.newArrayList(expected).toString(),
+        Lists.newArrayList(results).toString());
+  }
+
+  @Test
+  public void testVectorEngine() throws Exception {
+    char[] encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    runner.setScoringMethod(ScoringMethod.QUADGRAM);
+    SortedFixedSizedList<EnigmaResult> expected =
+        runner.run(encrypted, rotors, Lists.newArrayList(Rotor.REFLECTOR_B), 3, 3);
+
+    EnigmaRunner vectorRunner = new EnigmaRunner();
+    new CmdLineParser(vectorRunner).parseArgument("-engine", "VECTOR", "-scorer", "QUADGRAM");
+    SortedFixedSizedList<EnigmaResult> results =
+        vectorRunner.run(encrypted, rotors, Lists.newArrayList(Rotor.REFLECTOR_B), 3, 3);
+    Assert.assertEquals(Lists.newArrayList(expected).toString(),
+        Lists.newArrayList(results).toString());
+    Assert.assertEquals(runner.getCandidatesEvaluated(), vectorRunner.getCandidatesEvaluated());
+  }
+
+  @Test
+  public void testLaneDecodersMatchStep() throws Exception {
+    // Long enough for the vector letter counts to be moved out of their bytes.
+    StringBuilder message = new StringBuilder();
+    Random random = new Random(16);
+    for (int i = 0; i < 600; i++) {
+      message.append((char) ('A' + random.nextInt(26)));
+    }
+    char[] letters = message.toString().toCharArray();
+    String crib = message.substring(0, 6);
+    Scorer scorer = ScoringMethod.QUADGRAM.getScorer();
+    InnerPermutationCache innerPermutations = InnerPermutationCache.build(rotors, reflectors);
+    CandidateEvaluator evaluator = new CandidateEvaluator(letters, crib, scorer);
+    evaluator.setRotors(Rotor.ROTOR_4_1938, Rotor.ROTOR_2_1930, Rotor.ROTOR_5_1938,
+        Rotor.REFLECTOR_C, innerPermutations);
+    int[] messageIndexes = CandidateEvaluator.toIndexes(letters);
+    int[] cribIndexes = CandidateEvaluator.toIndexes(crib.toCharArray());
+
+    for (LaneDecoder decoder : Arrays.asList(
+        new ScalarLaneDecoder(messageIndexes, cribIndexes, scorer),
+        LaneDecoder.create(messageIndexes, cribIndexes, scorer))) {
+      decoder.setRotors(Rotor.ROTOR_2_1930, Rotor.ROTOR_5_1938,
+          innerPermutations.get(Rotor.ROTOR_4_1938, Rotor.ROTOR_2_1930, Rotor.REFLECTOR_C));
+      double[] scores = new double[decoder.getLanes()];
+      for (int first = 0; first + scores.length <= KeySpace.POSITIONS; first += 1999) {
+        decoder.evaluate(first, scores);
+        for (int lane = 0; lane < scores.length; lane++) {
+          int key = first + lane;
+          Assert.assertEquals(evaluator.evaluate(key / 676, key / 26 % 26, key % 26),
+              scores[lane], 0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    char[] encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+    runner.run(encrypted, rotors, reflector, 3, 2);
+
+    SearchStats stats = runner.getStats();
+    long keys = new KeySpace(rotors, reflector).size();
+    Assert.assertEquals(keys, stats.getTotalKeys());
+    Assert.assertEquals(keys, stats.getKeysEvaluated());
+    Assert.assertEquals(1.0, stats.getProgress(), 0.0);
+    Assert.assertEquals(0, stats.getEtaSeconds());
+    Assert.assertTrue(stats.getCharactersDecoded() >= keys);
+    Assert.assertTrue(stats.getCharactersDecoded() <= keys * encrypted.length);
+    Assert.assertTrue(stats.getKeysPerSecond() > 0);
+    Assert.assertTrue(stats.getPhaseNanos(SearchStats.Phase.SETUP) > 0);
+    Assert.assertTrue(stats.getPhaseNanos(SearchStats.Phase.SEARCH) > 0);
+    Assert.assertTrue(stats.getPhaseNanos(SearchStats.Phase.MERGE) > 0);
+    Assert.assertFalse(stats.getThreadKeysPerSecond().isEmpty());
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws Exception {
+    char[] encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    List<Rotor> threeRotors = rotors.subList(0, 3);
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+    KeySpace keySpace = new KeySpace(threeRotors, reflector);
+    InnerPermutationCache cache = InnerPermutationCache.build(threeRotors, reflector);
+    final Scorer scorer = ScoringMethod.QUADGRAM.getScorer();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    ScoredKeys expected = new KeySearch(keySpace, cache, encrypted, null, scorer, 10).run(pool);
+
+    // Crashes part way through the search.
+    final AtomicInteger scored = new AtomicInteger();
+    Scorer crashing = new Scorer() {
+      @Override
+      public double score(int[] text, int[] counts, int length) {
+        if (scored.incrementAndGet() > 50000) {
+          throw new IllegalStateException("Crashed");
+        }
+        return scorer.score(text, counts, length);
+      }
+
+      @Override
+      public double[] lowerBoundIncrements(int length) {
+        return scorer.lowerBoundIncrements(length);
+      }
+    };
+    File file = new File(temporaryFolder.getRoot(), "search.checkpoint");
+    KeySearch first = new KeySearch(keySpace, cache, encrypted, null, crashing, 10);
+    first.setCheckpoint(new SearchCheckpoint(file, "test"));
+    try {
+      first.run(pool);
+      Assert.fail("The search should have crashed.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    first.saveCheckpoint();
+
+    SearchCheckpoint saved = SearchCheckpoint.load(file, "test");
+    long searched = saved.getSearchedCount();
+    Assert.assertTrue(searched > 0);
+    Assert.assertTrue(searched < keySpace.size());
+    KeySearch resumed = new KeySearch(keySpace, cache, encrypted, null, scorer, 10);
+    resumed.setCheckpoint(saved);
+    ScoredKeys results = resumed.run(pool);
+    pool.shutdown();
+
+    Assert.assertEquals(keySpace.size() - searched, resumed.getCandidatesEvaluated());
+    Assert.assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.getKey(i), results.getKey(i));
+      Assert.assertEquals(expected.getScore(i), results.getScore(i), 0.0);
+    }
+
+    try {
+      SearchCheckpoint.load(file, "another search");
+      Assert.fail("A checkpoint from another search should be refused.");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    // The fingerprint includes the message, which can be longer than writeUTF() allows.
+    String longFingerprint = Strings.repeat("A", 100000);
+    new SearchCheckpoint(file, longFingerprint).save(new ConcurrentTopK(10));
+    Assert.assertEquals(0, SearchCheckpoint.load(file, longFingerprint).getSearchedCount());
+  }
+
+  @Test
+  public void testDistributedSearch() throws Exception {
+    String encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX";
+    List<Rotor> threeRotors = rotors.subList(0, 3);
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+    KeySpace keySpace = new KeySpace(threeRotors, reflector);
+    InnerPermutationCache cache = InnerPermutationCache.build(threeRotors, reflector);
+    ForkJoinPool pool = new ForkJoinPool(1);
+    ScoredKeys expected = new KeySearch(keySpace, cache, encrypted.toCharArray(), null,
+        ScoringMethod.QUADGRAM.getScorer(), 5).run(pool);
+    pool.shutdown();
+
+    SearchJob job = new SearchJob(encrypted, null, threeRotors, reflector,
+        ScoringMethod.QUADGRAM, DecodeEngine.STEP, 5);
+    SearchCoordinator coordinator =
+        new SearchCoordinator(job, KeySpace.POSITIONS / 4, 300, "token");
+    final int port = coordinator.start(0);
+
+    // A worker with the wrong token isn't given the job.
+    Socket stranger = new Socket("localhost", port);
+    new DataOutputStream(stranger.getOutputStream()).writeUTF("guess");
+    Assert.assertEquals(-1, stranger.getInputStream().read());
+    stranger.close();
+
+    // A worker that returns a key from outside its lease is disconnected, and the lease is
+    // handed out again.
+    Socket cheat = new Socket("localhost", port);
+    DataInputStream cheatIn = new DataInputStream(cheat.getInputStream());
+    DataOutputStream cheatOut = new DataOutputStream(cheat.getOutputStream());
+    cheatOut.writeUTF("token");
+    SearchJob.read(cheatIn);
+    cheatOut.writeInt(SearchCoordinator.REQUEST);
+    Assert.assertEquals(SearchCoordinator.LEASE, cheatIn.readInt());
+    int lease = cheatIn.readInt();
+    long leaseEnd = cheatIn.readLong() + KeySpace.POSITIONS / 4;
+    cheatIn.readLong();
+    cheatIn.readDouble();
+    cheatOut.writeInt(SearchCoordinator.RESULT);
+    cheatOut.writeInt(lease);
+    cheatOut.writeInt(1);
+    cheatOut.writeDouble(-1e9);
+    cheatOut.writeLong(keySpace.getKey(leaseEnd % keySpace.size()));
+    Assert.assertEquals(-1, cheatIn.read());
+    cheat.close();
+
+    // A worker that takes a lease and never returns it, so it has to be handed out again.
+    Socket stalled = new Socket("localhost", port);
+    DataInputStream stalledIn = new DataInputStream(stalled.getInputStream());
+    DataOutputStream stalledOut = new DataOutputStream(stalled.getOutputStream());
+    stalledOut.writeUTF("token");
+    SearchJob.read(stalledIn);
+    stalledOut.writeInt(SearchCoordinator.REQUEST);
+    Assert.assertEquals(SearchCoordinator.LEASE, stalledIn.readInt());
+
+    List<Thread> workers = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          ForkJoinPool workerPool = new ForkJoinPool(1);
+          try {
+            new SearchWorker(workerPool).run("localhost", port, "token");
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          } finally {
+            workerPool.shutdown();
+          }
+        }
+      };
+      worker.start();
+      workers.add(worker);
+    }
+
+    ScoredKeys results = coordinator.awaitResults();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    coordinator.close();
+    stalled.close();
+
+    Assert.assertTrue(coordinator.getLeasesReissued() >= 1);
+    Assert.assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.getKey(i), results.getKey(i));
+      Assert.assertEquals(expected.getScore(i), results.getScore(i), 0.0);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLeaseSizeMustBePositive() throws Exception {
+    new CmdLineParser(runner).parseArgument("-coordinator", "0", "-lease_size", "0");
+    runner.run("MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray(), rotors, reflectors, 3, 3);
+  }
+
+  @Test
+  public void testCribFirst() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    String expected =
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT";
+
+    new CmdLineParser(runner).parseArgument("-crib_first", "-crib", "WRITING");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted, rotors, reflectors, 3, 3);
+    Assert.assertEquals(expected, results.iterator().next().getMessage());
+    Assert.assertEquals(17576L * 60 * 3, runner.getCandidatesEvaluated());
+    Assert.assertEquals(runner.getCandidatesEvaluated() - 1, runner.getCandidatesRejectedByCrib());
+  }
+
+  @Test
+  public void testStopOnCrib() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    String expected =
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT";
+
+    new CmdLineParser(runner).parseArgument("-crib", "WRITING", "-stop_on_crib",
+        "-scorer", "QUADGRAM", "-stop_margin", "100");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted, rotors, reflectors, 3, 3);
+    Assert.assertEquals(expected, results.iterator().next().getMessage());
+    Assert.assertNotNull(runner.getStats().getStoppedBy());
+    Assert.assertTrue(runner.getCandidatesEvaluated() < 17576L * 60 * 3);
+  }
+
+  @Test
+  public void testStopCriterionNeverMet() throws Exception {
+    char[] encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+
+    new CmdLineParser(runner).parseArgument("-stop_score", "-1e9");
+    runner.run(encrypted, rotors, reflector, 3, 2);
+    Assert.assertEquals(17576L * 60, runner.getCandidatesEvaluated());
+    Assert.assertNull(runner.getStats().getStoppedBy());
+  }
+
+  @Test
+  public void testLikelySlicesFirst() throws Exception {
+    KeySpace keySpace = new KeySpace(rotors, reflectors);
+    List<List<Rotor>> common = Lists.newArrayList();
+    common.add(Lists.newArrayList(Rotor.ROTOR_3_1930, Rotor.ROTOR_1_1930, Rotor.ROTOR_5_1938));
+    int[] slices = new LikelySlicePrioritizer(LikelySlicePrioritizer.REFLECTORS, common)
+        .prioritize(keySpace);
+
+    Assert.assertEquals(keySpace.getSliceCount(), slices.length);
+    Assert.assertEquals(Arrays.asList(Rotor.ROTOR_3_1930, Rotor.ROTOR_1_1930, Rotor.ROTOR_5_1938),
+        Arrays.asList(keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slices[0]))));
+    boolean[] seen = new boolean[slices.length];
+    for (int i = 0; i < slices.length; i++) {
+      Assert.assertFalse(seen[slices[i]]);
+      seen[slices[i]] = true;
+      Rotor expected = i < 60 ? Rotor.REFLECTOR_B : i < 120 ? Rotor.REFLECTOR_C : Rotor.REFLECTOR_A;
+      Assert.assertSame(expected, keySpace.getReflector(keySpace.getSliceReflector(slices[i])));
+    }
+  }
+
+  @Test
+  public void testPreScoredSlices() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    KeySpace keySpace = new KeySpace(rotors, reflectors);
+    int[] slices = new PreScoreSlicePrioritizer(encrypted, ScoringMethod.QUADGRAM.getScorer(),
+        InnerPermutationCache.build(rotors, reflectors)).prioritize(keySpace);
+    int[] sorted = slices.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      Assert.assertEquals(i, sorted[i]);
+    }
+    // The key is rotors 1, 2, 3 with reflector B, its samples should beat most other slices.
+    int rank = 0;
+    while (!isSlice(keySpace, slices[rank], Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930,
+        Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B)) {
+      rank++;
+    }
+    Assert.assertTrue("Ranked " + rank, rank < slices.length / 2);
+  }
+
+  private static boolean isSlice(KeySpace keySpace, int slice, Rotor left, Rotor middle,
+      Rotor right, Rotor reflector) {
+    return Arrays.asList(keySpace.getRotorOrder(keySpace.getSliceRotorOrder(slice)))
+        .equals(Arrays.asList(left, middle, right))
+        && keySpace.getReflector(keySpace.getSliceReflector(slice)) == reflector;
+  }
+
+  @Test
+  public void testPrioritizedSearchStopsAtFirstSlice() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    String expected =
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT";
+
+    // Rotors 1, 2, 3 with reflector B are the first slice searched.
+    new CmdLineParser(runner).parseArgument("-crib", "WRITING", "-stop_on_crib",
+        "-slice_order", "LIKELY");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted, rotors, reflectors, 3, 3);
+    Assert.assertEquals(expected, results.iterator().next().getMessage());
+    Assert.assertTrue(runner.getCandidatesEvaluated() <= 17576 + 3 * 676);
+  }
+
+  @Test
+  public void testTimeBudget() throws Exception {
+    char[] encrypted =
+        "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX"
+        .toCharArray();
+    String expected =
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT";
+    List<Rotor> allRotors = Lists.newArrayList(rotors);
+    allRotors.add(Rotor.ROTOR_6);
+    KeySpace keySpace = new KeySpace(allRotors, reflectors);
+    InnerPermutationCache innerPermutations = InnerPermutationCache.build(allRotors, reflectors);
+
+    // The budget runs out, the way -time_budget stops the search, once the first slice is done.
+    final KeySearch search = new KeySearch(keySpace, innerPermutations, encrypted, null,
+        ScoringMethod.QUADGRAM.getScorer(), 3);
+    SearchStats stats = new SearchStats(keySpace.size()) {
+      @Override
+      void add(long evaluated, long pruned, long rejectedByCrib, long characters, long nanos) {
+        super.add(evaluated, pruned, rejectedByCrib, characters, nanos);
+        if (getKeysEvaluated() >= KeySpace.POSITIONS) {
+          search.stop("the time budget ran out");
+        }
+      }
+    };
+    search.setStats(stats);
+    search.setPrioritizer(new LikelySlicePrioritizer());
+    // One thread, so no other slice is started before the stop is seen.
+    ForkJoinPool pool = new ForkJoinPool(1);
+    ScoredKeys best;
+    try {
+      best = search.run(pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    Assert.assertEquals("the time budget ran out", stats.getStoppedBy());
+    Assert.assertEquals(KeySpace.POSITIONS, stats.getKeysEvaluated());
+    EnigmaMachine machine =
+        new EnigmaMachine(keySpace.getConfig(best.getKey(0), innerPermutations));
+    StringBuilder decoded = new StringBuilder();
+    for (char c : encrypted) {
+      decoded.append(machine.step(c));
+    }
+    Assert.assertEquals(expected, decoded.toString());
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    String input = "# Two messages, the second with a crib.\n"
+        + "ZTQBLVXKPBPGAVQBRYDYQEZNKRLMZTMRGBJSQKHDPHHNTNIDLYVFCOKZYYSMJFAHQBTEAVFKOXRPSQX\n"
+        + "\n"
+        + "MTVZLRUGJUPYISBINSDHPNXNJVYTX SHORTMESSAGE\n";
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    int cracked = runner.runBatch(new BufferedReader(new StringReader(input)),
+        new PrintStream(output, true, "US-ASCII"), rotors, reflectors, 1, 3);
+    Assert.assertEquals(2, cracked);
+    Assert.assertEquals(17576L * 60 * 3 * 2, runner.getCandidatesEvaluated());
+    String printed = output.toString("US-ASCII");
+    Assert.assertTrue(printed.contains(
+        "THISISASLIGHTLYLONGERTESTSOIHAVETOSEEIFICANKEEPWRITINGALONGERSTRINGTOUSEASINPUT"));
+    Assert.assertTrue(printed.contains("THISISASHORTMESSAGENOCRACKING"));
+  }
+
+  @Test
+  public void testShortMessageWithQuadgrams() throws Exception {
+    char[] encrypted = "MTVZLRUGJUPYISBINSDHPNXNJVYTX".toCharArray();
+    String expected = "THISISASHORTMESSAGENOCRACKING";
+
+    runner.setScoringMethod(ScoringMethod.QUADGRAM);
+    SortedFixedSizedList<EnigmaResult> results =
+        runner.run(encrypted, rotors, Lists.newArrayList(Rotor.REFLECTOR_B), 3, 3);
+    Assert.assertEquals(expected, results.iterator().next().getMessage());
+  }
+
+  @Test
+  public void testPlugboardSearch() throws Exception {
+    char[] encrypted = ("GDKLXTLTTLUFKTZAMFUYOJGWHXBOAQUDOKVPNRXVWIZFKOKUERPUZUOGXUZHJTM"
+        + "TUKQZANHHFLTWPMYCFZCVLTTZLCWPBVSXPPONNVKMRHPUYOLTTMBBKMAJZNNWWWBSSJZHVNCVFKTWATKIEGC"
+        + "HUPATFTMBBYYCELFLEZKNGTOLUSKVCSTGSGWEQ").toCharArray();
+    String expected = "THEWEATHERTODAYISCLEARANDTHETROOPSWILLADVANCEALONGTHERIVERATDAWNREPORTANY"
+        + "CONTACTWITHTHEENEMYIMMEDIATELYANDHOLDTHEBRIDGEUNTILRELIEVEDBYTHESECONDBATTALIONWHICHIS"
+        + "EXPECTEDTOARRIVEBEFORENOON";
+
+    new CmdLineParser(runner).parseArgument("-plugboard_search", "-scorer", "QUADGRAM",
+        "-hill_climb_keys", "2000", "-restarts", "1");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted,
+        Lists.newArrayList(Rotor.ROTOR_2_1930, Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938),
+        Lists.newArrayList(Rotor.REFLECTOR_B), 1, 3);
+    Assert.assertEquals(expected, results.iterator().next().getMessage());
+  }
+
+  @Test
+  public void testBombe() throws Exception {
+    char[] encrypted = ("GDKLXTLTTLUFKTZAMFUYOJGWHXBOAQUDOKVPNRXVWIZFKOKUERPUZUOGXUZHJTM"
+        + "TUKQZANHHFLTWPMYCFZCVLTTZLCWPBVSXPPONNVKMRHPUYOLTTMBBKMAJZNNWWWBSSJZHVNCVFKTWATKIEGC"
+        + "HUPATFTMBBYYCELFLEZKNGTOLUSKVCSTGSGWEQ").toCharArray();
+
+    new CmdLineParser(runner).parseArgument("-bombe", "-crib", "THEWEATHERTODAY", "-scorer",
+        "QUADGRAM");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted,
+        Lists.newArrayList(Rotor.ROTOR_2_1930, Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938),
+        Lists.newArrayList(Rotor.REFLECTOR_B), 1, 3);
+    Assert.assertTrue(results.iterator().next().getMessage().startsWith(
+        "THEWEATHERTODAYISCLEARANDTHETROOPS"));
+  }
+
+  @Test
+  public void testMenuLoops() throws Exception {
+    int[] message = CandidateEvaluator.toIndexes("ABCA".toCharArray());
+    // B-A twice is a loop, the chain C-D, D-E has none.
+    Assert.assertEquals(1, Menu.build(message, new int[] {1, 0}, 0).getLoops());
+    Assert.assertEquals(0, Menu.build(message, new int[] {3, 4}, 1).getLoops());
+    // A-B, B-C, C-A is a triangle.
+    Assert.assertEquals(1, Menu.build(message, new int[] {1, 2, 0}, 0).getLoops());
+
+    String crib = "THEWEATHERTODAY";
+    char[] encrypted = ("GDKLXTLTTLUFKTZAMFUYOJGWHXBOAQUDOKVPNRXVWIZFKOKUERPUZUOGXUZHJTM")
+        .toCharArray();
+    List<Rotor> bombeRotors =
+        Lists.newArrayList(Rotor.ROTOR_2_1930, Rotor.ROTOR_4_1938, Rotor.ROTOR_5_1938);
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+    KeySpace keySpace = new KeySpace(bombeRotors, reflector);
+    InnerPermutationCache innerPermutations = InnerPermutationCache.build(bombeRotors, reflector);
+    BombeSearch all = new BombeSearch(keySpace, innerPermutations, encrypted, crib,
+        ScoringMethod.QUADGRAM.getScorer(), -1, 0, 1);
+    BombeSearch looped = new BombeSearch(keySpace, innerPermutations, encrypted, crib,
+        ScoringMethod.QUADGRAM.getScorer(), -1, 3, 1);
+    Assert.assertEquals(0, all.getSkippedMenuCount());
+    Assert.assertTrue(looped.getSkippedMenuCount() > 0);
+    Assert.assertEquals(all.getMenuCount(),
+        looped.getMenuCount() + looped.getSkippedMenuCount());
+  }
+
+  @Test
+  public void testRingSearch() throws Exception {
+    String plain = "THEWEATHERTODAYISCLEARANDTHETROOPSWILLADVANCEALONGTHERIVERATDAWNREPORTANY"
+        + "CONTACTWITHTHEENEMYIMMEDIATELYANDHOLDTHEBRIDGEUNTILRELIEVEDBYTHESECONDBATTALIONWHICHIS"
+        + "EXPECTEDTOARRIVEBEFORENOON";
+    EnigmaMachine machine = new EnigmaMachine(new EnigmaMachineConfig('F', 'E', 'K',
+        Rotor.ROTOR_2_1930, Rotor.ROTOR_1_1930, Rotor.ROTOR_3_1930, Rotor.REFLECTOR_B)
+        .setRings('C', 'M', 'Q'));
+    char[] encrypted = new char[plain.length()];
+    for (int i = 0; i < encrypted.length; i++) {
+      encrypted[i] = machine.step(plain.charAt(i));
+    }
+
+    new CmdLineParser(runner).parseArgument("-ring_search", "-scorer", "QUADGRAM");
+    SortedFixedSizedList<EnigmaResult> results = runner.run(encrypted,
+        Lists.newArrayList(Rotor.ROTOR_1_1930, Rotor.ROTOR_2_1930, Rotor.ROTOR_3_1930),
+        Lists.newArrayList(Rotor.REFLECTOR_B), 1, 3);
+    Assert.assertEquals(plain, results.iterator().next().getMessage());
+  }
+
+  @Test
+  public void testRingSearchRethrowsErrors() throws Exception {
+    List<Rotor> threeRotors = rotors.subList(0, 3);
+    List<Rotor> reflector = Lists.newArrayList(Rotor.REFLECTOR_B);
+    Scorer crashing = new Scorer() {
+      @Override
+      public double score(int[] text, int[] counts, int length) {
+        throw new IllegalStateException("Crashed");
+      }
+
+      @Override
+      public double[] lowerBoundIncrements(int length) {
+        return null;
+      }
+    };
+    BoundedScoreHeap candidates = new BoundedScoreHeap(1);
+    candidates.offer(0.0, EnigmaKey.pack(0, 0, 0, 0, 0));
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      new RingSearch(new KeySpace(threeRotors, reflector),
+          InnerPermutationCache.build(threeRotors, reflector), "ABCDEF".toCharArray(), null,
+          crashing).run(pool, candidates.toSorted(), 1);
+      Assert.fail("The scorer's exception should be rethrown.");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("Crashed"));
+    } finally {
+      pool.shutdown();
+    }
   }
 
 }
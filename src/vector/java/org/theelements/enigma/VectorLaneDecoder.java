@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Mark Weaver
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.theelements.enigma;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The LaneDecoder for the VECTOR engine, built on the incubating Java Vector API with one key per
+ * int lane. Each key press is a few gathers: the rotor positions for every lane from the
+ * StateSequence, then the right rotor, the InnerPermutationCache table and the right rotor again.
+ * Each lane's letters are then counted in a byte vector register, one lane per letter, by adding
+ * a one-hot row for every letter, and moved out to ints before a count can overflow.
+ *
+ * <p>Only built with gradle -Pvector, and only used when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}, see LaneDecoder.create().
+ */
+final class VectorLaneDecoder extends LaneDecoder {
+  private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+  // At least 26 byte lanes, one for each letter.
+  private static final VectorSpecies<Byte> COUNT_SPECIES = ByteVector.SPECIES_256;
+  private static final int ROW = COUNT_SPECIES.length();
+  // Row letter has a 1 in lane letter.
+  private static final byte[] ONE_HOT = new byte[26 * ROW];
+  // Presses counted in bytes before they are added to the int counts.
+  private static final int FLUSH = 255;
+
+  static {
+    for (int letter = 0; letter < 26; letter++) {
+      ONE_HOT[letter * ROW + letter] = 1;
+    }
+  }
+
+  private final int lanes = SPECIES.length();
+  private final int[] starts = new int[lanes];
+  private final int[] indexes = new int[lanes];
+  // Decoded letters by key press, text[press * lanes + lane].
+  private final int[] text;
+  private final int[] laneText;
+  private final int[] laneCounts = new int[26];
+  private final byte[] byteCounts = new byte[ROW];
+
+  private int[] forward3;
+  private int[] reverse3;
+  private final int[] innerTable = new int[26 * 26 * 26];
+  private StateSequence sequence;
+
+  VectorLaneDecoder(int[] message, int[] crib, Scorer scorer) {
+    super(message, crib, scorer);
+    this.text = new int[message.length * lanes];
+    this.laneText = new int[message.length];
+  }
+
+  @Override
+  int getLanes() {
+    return lanes;
+  }
+
+  @Override
+  void setRotors(Rotor rotor2, Rotor rotor3, byte[] innerTable) {
+    forward3 = rotor3.getFlatForwardTable();
+    reverse3 = rotor3.getFlatReverseTable();
+    for (int i = 0; i < innerTable.length; i++) {
+      this.innerTable[i] = innerTable[i];
+    }
+    sequence = StateSequence.get(rotor2, rotor3, message.length);
+  }
+
+  @Override
+  void evaluate(int first, double[] scores) {
+    int[] rightBases = sequence.getRightBases();
+    int[] innerBases = sequence.getInnerBases();
+    // Neighbouring start positions are usually neighbours on the stepping cycle too, then the
+    // positions can be loaded instead of gathered.
+    boolean contiguous = true;
+    for (int lane = 0; lane < lanes; lane++) {
+      starts[lane] = sequence.getStart(first + lane);
+      contiguous &= starts[lane] == starts[0] + lane;
+    }
+
+    int length = message.length;
+    for (int press = 0; press < length; press++) {
+      IntVector right;
+      IntVector inner;
+      if (contiguous) {
+        right = IntVector.fromArray(SPECIES, rightBases, starts[0] + press);
+        inner = IntVector.fromArray(SPECIES, innerBases, starts[0] + press);
+      } else {
+        right = IntVector.fromArray(SPECIES, rightBases, press, starts, 0);
+        inner = IntVector.fromArray(SPECIES, innerBases, press, starts, 0);
+      }
+
+      right.add(message[press]).intoArray(indexes, 0);
+      IntVector value = IntVector.fromArray(SPECIES, forward3, 0, indexes, 0);
+      inner.add(value).intoArray(indexes, 0);
+      value = IntVector.fromArray(SPECIES, innerTable, 0, indexes, 0);
+      right.add(value).intoArray(indexes, 0);
+      value = IntVector.fromArray(SPECIES, reverse3, 0, indexes, 0);
+      value.intoArray(text, press * lanes);
+    }
+
+    for (int lane = 0; lane < lanes; lane++) {
+      Arrays.fill(laneCounts, 0);
+      ByteVector counts = ByteVector.zero(COUNT_SPECIES);
+      int uncounted = 0;
+      for (int press = 0; press < length; press++) {
+        int letter = text[press * lanes + lane];
+        laneText[press] = letter;
+        counts = counts.add(ByteVector.fromArray(COUNT_SPECIES, ONE_HOT, letter * ROW));
+        if (++uncounted == FLUSH) {
+          addCounts(counts);
+          counts = ByteVector.zero(COUNT_SPECIES);
+          uncounted = 0;
+        }
+      }
+      addCounts(counts);
+      scores[lane] = score(laneText, laneCounts);
+    }
+  }
+
+  private void addCounts(ByteVector counts) {
+    counts.intoArray(byteCounts, 0);
+    for (int letter = 0; letter < 26; letter++) {
+      laneCounts[letter] += byteCounts[letter] & 0xff;
+    }
+  }
+}